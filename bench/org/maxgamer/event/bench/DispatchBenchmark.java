@@ -0,0 +1,313 @@
+package org.maxgamer.event.bench;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.maxgamer.event.Cancellable;
+import org.maxgamer.event.Event;
+import org.maxgamer.event.EventHandler;
+import org.maxgamer.event.EventListener;
+import org.maxgamer.event.EventManager;
+import org.maxgamer.event.EventPriority;
+import org.maxgamer.event.Registration;
+
+/**
+ * Benchmarks for EventManager dispatch. Run with:<pre>
+ * java -cp bin org.maxgamer.event.bench.DispatchBenchmark [filter] [iterationMillis]
+ * </pre>
+ * Each event object is reused, so the B/op column is the allocation of the
+ * dispatch itself, which should be 0 for the callEvent benchmarks. Each
+ * benchmark runs in its own JVM, and only its own setup is done there.
+ * @author netherfoam
+ */
+public class DispatchBenchmark {
+	/** Keeps handler work from being optimised away */
+	private static long counter;
+	
+	public static class Ping extends Event{
+	}
+	
+	public static class Other extends Event{
+	}
+	
+	public static class Cancelled extends Event implements Cancellable{
+		private boolean cancelled;
+		
+		@Override
+		public boolean isCancelled(){
+			return cancelled;
+		}
+		
+		@Override
+		public void setCancelled(boolean cancel){
+			this.cancelled = cancel;
+		}
+	}
+	
+	public static class Level0 extends Event{}
+	public static class Level1 extends Level0{}
+	public static class Level2 extends Level1{}
+	public static class Level3 extends Level2{}
+	public static class Level4 extends Level3{}
+	public static class Level5 extends Level4{}
+	public static class Level6 extends Level5{}
+	public static class Level7 extends Level6{}
+	
+	public static class PingListener implements EventListener{
+		@EventHandler
+		public void onPing(Ping e){
+			counter++;
+		}
+	}
+	
+	public static class OtherListener implements EventListener{
+		@EventHandler
+		public void onOther(Other e){
+			counter++;
+		}
+	}
+	
+	public static class HierarchyListener implements EventListener{
+		@EventHandler
+		public void on0(Level0 e){
+			counter++;
+		}
+		@EventHandler
+		public void on2(Level2 e){
+			counter++;
+		}
+		@EventHandler
+		public void on4(Level4 e){
+			counter++;
+		}
+		@EventHandler
+		public void on7(Level7 e){
+			counter++;
+		}
+	}
+	
+	public static class CancelListener implements EventListener{
+		@EventHandler(priority = EventPriority.LOWEST)
+		public void cancel(Cancelled e){
+			e.setCancelled(true);
+		}
+	}
+	
+	public static class IgnoringListener implements EventListener{
+		@EventHandler(ignoreCancelled = true)
+		public void onCancelled(Cancelled e){
+			counter++;
+		}
+	}
+	
+	public static class MonitorListener implements EventListener{
+		@EventHandler(priority = EventPriority.MONITOR)
+		public void onCancelled(Cancelled e){
+			counter++;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception{
+		Harness harness = Harness.fork(DispatchBenchmark.class, args, 3, 5);
+		
+		harness.header();
+		for(int n : new int[]{1, 10, 100, 1000}){
+			handlers(harness, n);
+		}
+		hierarchy(harness, 0);
+		hierarchy(harness, 7);
+		nonMatching(harness);
+		noListeners(harness);
+		cancelled(harness, false);
+		cancelled(harness, true);
+		churn(harness);
+		harness.consume(counter);
+	}
+	
+	/**
+	 * callEvent() with the given number of handlers, which all accept the event.
+	 */
+	private static void handlers(Harness harness, int n) throws Exception{
+		String name = "callEvent.handlers=" + n;
+		if(harness.select(name) == false){
+			return;
+		}
+		
+		final EventManager manager = new EventManager();
+		for(int i = 0; i < n; i++){
+			manager.register(new PingListener());
+		}
+		final Ping event = new Ping();
+		harness.run(name, new Harness.Op(){
+			@Override
+			public void run(int ops){
+				for(int i = 0; i < ops; i++){
+					manager.callEvent(event);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * callEvent() for the top or bottom of an 8 deep event class hierarchy,
+	 * with handlers at several levels.
+	 */
+	private static void hierarchy(Harness harness, int depth) throws Exception{
+		String name = "callEvent.hierarchy.depth=" + depth;
+		if(harness.select(name) == false){
+			return;
+		}
+		
+		final EventManager manager = new EventManager();
+		for(int i = 0; i < 25; i++){
+			manager.register(new HierarchyListener());
+		}
+		final Level0 event = depth == 0 ? new Level0() : new Level7();
+		harness.run(name, new Harness.Op(){
+			@Override
+			public void run(int ops){
+				for(int i = 0; i < ops; i++){
+					manager.callEvent(event);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * callEvent() with 1000 handlers for other events, and one which accepts
+	 * the event.
+	 */
+	private static void nonMatching(Harness harness) throws Exception{
+		String name = "callEvent.nonMatching=1000";
+		if(harness.select(name) == false){
+			return;
+		}
+		
+		final EventManager manager = new EventManager();
+		for(int i = 0; i < 1000; i++){
+			manager.register(new OtherListener());
+		}
+		manager.register(new PingListener());
+		final Ping ping = new Ping();
+		harness.run(name, new Harness.Op(){
+			@Override
+			public void run(int ops){
+				for(int i = 0; i < ops; i++){
+					manager.callEvent(ping);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * callEvent() for an event which nobody listens to, with the same 1001
+	 * handlers as nonMatching.
+	 */
+	private static void noListeners(Harness harness) throws Exception{
+		String name = "callEvent.noListeners";
+		if(harness.select(name) == false){
+			return;
+		}
+		
+		final EventManager manager = new EventManager();
+		for(int i = 0; i < 1000; i++){
+			manager.register(new OtherListener());
+		}
+		manager.register(new PingListener());
+		final Level0 unheard = new Level0();
+		harness.run(name, new Harness.Op(){
+			@Override
+			public void run(int ops){
+				for(int i = 0; i < ops; i++){
+					manager.callEvent(unheard);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * callEvent() for an event which is cancelled by the first handler, with
+	 * 100 handlers which ignore cancelled events and 10 MONITOR handlers.
+	 */
+	private static void cancelled(Harness harness, boolean stopOnCancel) throws Exception{
+		String name = "callEvent.cancelled.stopOnCancel=" + stopOnCancel;
+		if(harness.select(name) == false){
+			return;
+		}
+		
+		final EventManager manager = new EventManager();
+		manager.setStopOnCancel(stopOnCancel);
+		manager.register(new CancelListener());
+		for(int i = 0; i < 100; i++){
+			manager.register(new IgnoringListener());
+		}
+		for(int i = 0; i < 10; i++){
+			manager.register(new MonitorListener());
+		}
+		final Cancelled event = new Cancelled();
+		harness.run(name, new Harness.Op(){
+			@Override
+			public void run(int ops){
+				for(int i = 0; i < ops; i++){
+					event.setCancelled(false);
+					manager.callEvent(event);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Registering and unregistering a listener while other threads call events
+	 * through the same manager, which has 100 handlers.
+	 */
+	private static void churn(Harness harness) throws Exception{
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		String name = "register+unregister.concurrentDispatch=" + threads;
+		if(harness.select(name) == false){
+			return;
+		}
+		
+		final EventManager manager = new EventManager();
+		for(int i = 0; i < 100; i++){
+			manager.register(new PingListener());
+		}
+		
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong calls = new AtomicLong();
+		Thread[] callers = new Thread[threads];
+		for(int i = 0; i < threads; i++){
+			callers[i] = new Thread("Dispatch-" + i){
+				@Override
+				public void run(){
+					Ping event = new Ping();
+					while(running.get()){
+						for(int j = 0; j < 1000; j++){
+							manager.callEvent(event);
+						}
+						calls.addAndGet(1000);
+					}
+				}
+			};
+			callers[i].setDaemon(true);
+			callers[i].start();
+		}
+		
+		final PingListener listener = new PingListener();
+		final OtherListener other = new OtherListener();
+		long start = System.nanoTime();
+		harness.run(name, new Harness.Op(){
+			@Override
+			public void run(int ops){
+				for(int i = 0; i < ops; i++){
+					Registration r = manager.register((i & 1) == 0 ? listener : other);
+					r.unregister();
+				}
+			}
+		});
+		running.set(false);
+		for(Thread t : callers){
+			t.join();
+		}
+		System.out.println(String.format("%-48s %14.0f", "  concurrent callEvent throughput", calls.get() * 1000000000.0 / (System.nanoTime() - start)));
+	}
+}
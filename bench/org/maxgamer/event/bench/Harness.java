@@ -0,0 +1,248 @@
+package org.maxgamer.event.bench;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+/**
+ * A small benchmark harness, in the spirit of JMH but without the dependency.
+ * Each benchmark is warmed up so the JIT has compiled it, then measured over a
+ * number of fixed length iterations. For each benchmark this reports the
+ * throughput, the time per operation, the bytes allocated per operation by
+ * the benchmark thread, and the number of garbage collections and their time.
+ * 
+ * The allocation figure relies on com.sun.management.ThreadMXBean, which
+ * HotSpot based JVMs provide. It is reported as n/a elsewhere.
+ * 
+ * A harness created with fork() runs each benchmark in a fresh JVM, like
+ * JMH's @Fork. Otherwise the JIT profile, compiled code and heap left by one
+ * benchmark would skew the ones after it.
+ * @author netherfoam
+ */
+public class Harness {
+	/**
+	 * A benchmarked operation.
+	 */
+	public interface Op{
+		/**
+		 * Performs the operation the given number of times.
+		 * @param n The number of times to perform the operation
+		 * @throws Exception If the benchmark fails
+		 */
+		public void run(int n) throws Exception;
+	}
+	
+	/** The number of operations between checking the clock */
+	private static final int BATCH = 1000;
+	/** The argument which tells a forked JVM which benchmark to run */
+	private static final String CHILD = "--benchmark";
+	
+	/** The number of warmup iterations */
+	private int warmups;
+	/** The number of measured iterations */
+	private int iterations;
+	/** The length of each iteration, in nanoseconds */
+	private long iterationNanos;
+	/** Only benchmarks whose names contain this are run, or null for all */
+	private String filter;
+	/** The class whose main method runs the benchmarks in a new JVM, or null to run them in this one */
+	private Class<?> main;
+	/** The only benchmark this JVM runs, or null if it was not forked */
+	private String only;
+	/** Keeps results from being optimised away */
+	private volatile long sink;
+	
+	/**
+	 * Constructs a new Harness.
+	 * @param warmups The number of warmup iterations
+	 * @param iterations The number of measured iterations
+	 * @param iterationMillis The length of each iteration in milliseconds
+	 * @param filter Only benchmarks whose names contain this are run, or null for all
+	 */
+	public Harness(int warmups, int iterations, long iterationMillis, String filter){
+		this.warmups = warmups;
+		this.iterations = iterations;
+		this.iterationNanos = iterationMillis * 1000000L;
+		this.filter = filter;
+	}
+	
+	/**
+	 * Creates a Harness from the command line arguments of the given main class,
+	 * which are [filter] [iterationMillis]. Each benchmark is run in a new JVM,
+	 * which runs main with arguments telling it to run only that benchmark.
+	 * @param main The class whose main method runs the benchmarks
+	 * @param args The arguments passed to main
+	 * @param warmups The number of warmup iterations
+	 * @param iterations The number of measured iterations
+	 * @return The new Harness
+	 */
+	public static Harness fork(Class<?> main, String[] args, int warmups, int iterations){
+		if(args.length > 0 && args[0].equals(CHILD)){
+			Harness harness = new Harness(warmups, iterations, Long.parseLong(args[2]), null);
+			harness.only = args[1];
+			return harness;
+		}
+		
+		String filter = args.length > 0 ? args[0] : null;
+		long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		Harness harness = new Harness(warmups, iterations, millis, filter);
+		harness.main = main;
+		return harness;
+	}
+	
+	/**
+	 * Returns true if the given benchmark should be set up and run in this JVM.
+	 * Benchmarks should call this before doing any setup. If this harness forks,
+	 * a matching benchmark is run in a new JVM before this returns, and this
+	 * returns false.
+	 * @param name The name of the benchmark
+	 * @return true if the benchmark should be run here
+	 * @throws Exception If the forked JVM could not be run, or failed
+	 */
+	public boolean select(String name) throws Exception{
+		if(matches(name) == false){
+			return false;
+		}
+		if(main == null){
+			return true;
+		}
+		
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(main.getName());
+		command.add(CHILD);
+		command.add(name);
+		command.add(String.valueOf(iterationNanos / 1000000L));
+		
+		Process process = new ProcessBuilder(command).inheritIO().start();
+		int status = process.waitFor();
+		if(status != 0){
+			throw new IllegalStateException("Benchmark " + name + " failed in its forked JVM, exit code " + status);
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns true if the given benchmark is run by this harness.
+	 * @param name The name of the benchmark
+	 * @return true if it matches the filter, or is the forked benchmark
+	 */
+	private boolean matches(String name){
+		if(only != null){
+			return only.equals(name);
+		}
+		return filter == null || name.contains(filter);
+	}
+	
+	/**
+	 * Consumes the given value, so that the JIT can't remove the code which produced it.
+	 * @param value The value
+	 */
+	public void consume(long value){
+		sink += value;
+	}
+	
+	/**
+	 * Prints the header for the results table.
+	 */
+	public void header(){
+		if(only != null){
+			return; //The forking JVM prints it
+		}
+		System.out.println(String.format("%-48s %14s %12s %12s %8s %10s", "Benchmark", "ops/s", "ns/op", "B/op", "gc.count", "gc.time"));
+	}
+	
+	/**
+	 * Runs and reports the given benchmark, if it matches the filter.
+	 * When forking, use select() first instead, which runs it in a new JVM.
+	 * @param name The name of the benchmark
+	 * @param op The operation to measure
+	 * @throws Exception If the benchmark fails
+	 */
+	public void run(String name, Op op) throws Exception{
+		if(matches(name) == false){
+			return;
+		}
+		
+		for(int i = 0; i < warmups; i++){
+			iterate(op);
+		}
+		System.gc();
+		
+		long gcCount = getGcCount();
+		long gcTime = getGcTime();
+		long allocated = getAllocatedBytes();
+		long ops = 0;
+		long nanos = 0;
+		for(int i = 0; i < iterations; i++){
+			long start = System.nanoTime();
+			ops += iterate(op);
+			nanos += System.nanoTime() - start;
+		}
+		long bytes = getAllocatedBytes() - allocated;
+		
+		System.out.println(String.format("%-48s %14.0f %12.2f %12s %8d %8dms", name,
+				ops * 1000000000.0 / nanos, 
+				nanos / (double) ops, 
+				allocated < 0 ? "n/a" : String.format("%.2f", bytes / (double) ops),
+				getGcCount() - gcCount, 
+				getGcTime() - gcTime));
+	}
+	
+	/**
+	 * Runs the operation in batches until the iteration time is up.
+	 * @param op The operation
+	 * @return The number of operations performed
+	 * @throws Exception If the benchmark fails
+	 */
+	private long iterate(Op op) throws Exception{
+		long end = System.nanoTime() + iterationNanos;
+		long ops = 0;
+		do{
+			op.run(BATCH);
+			ops += BATCH;
+		}while(System.nanoTime() < end);
+		return ops;
+	}
+	
+	/**
+	 * The number of bytes allocated by the current thread so far.
+	 * @return The number of bytes, or -1 if the JVM can't measure it.
+	 */
+	private static long getAllocatedBytes(){
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean){
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+	
+	/**
+	 * The total number of garbage collections so far.
+	 * @return The total number of garbage collections so far.
+	 */
+	private static long getGcCount(){
+		long count = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+	
+	/**
+	 * The total time spent in garbage collection so far.
+	 * @return The time in milliseconds.
+	 */
+	private static long getGcTime(){
+		long time = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+}
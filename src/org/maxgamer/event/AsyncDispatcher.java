@@ -0,0 +1,145 @@
+package org.maxgamer.event;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the fire-and-forget handlers of events on an Executor, after the
+ * synchronous handlers have finished on the calling thread. Events are run
+ * one at a time in the order they were submitted, and the handlers for each
+ * event are run in priority order, so an async handler never sees events
+ * out of order.
+ * @author netherfoam
+ */
+public class AsyncDispatcher {
+	/** The manager which owns this dispatcher, used to invoke handlers */
+	private EventManager manager;
+	/** The executor which drains the queue */
+	private Executor executor;
+	/** Events which are waiting for their async handlers to be run */
+	private ConcurrentLinkedQueue<Deferred> queue = new ConcurrentLinkedQueue<Deferred>();
+	/** True while a drain task is scheduled or running */
+	private AtomicBoolean draining = new AtomicBoolean(false);
+	/** The task which runs queued events, reused so submitting doesn't allocate a new Runnable */
+	private Runnable drainer = new Runnable(){
+		@Override
+		public void run(){
+			drain();
+		}
+	};
+	
+	/**
+	 * Constructs a new AsyncDispatcher.
+	 * @param manager The manager to invoke handlers through
+	 * @param executor The executor to run handlers on
+	 */
+	public AsyncDispatcher(EventManager manager, Executor executor){
+		if(manager == null){
+			throw new NullPointerException("Manager may not be null.");
+		}
+		if(executor == null){
+			throw new NullPointerException("Executor may not be null.");
+		}
+		this.manager = manager;
+		this.executor = executor;
+	}
+	
+	/**
+	 * The executor which handlers are run on
+	 * @return The executor which handlers are run on
+	 */
+	public Executor getExecutor(){
+		return executor;
+	}
+	
+	/**
+	 * Queues the given handlers to be called with the given event.
+	 * @param event The event
+	 * @param handlers The handlers, in the order they should be called.
+	 * @throws RejectedExecutionException If the executor rejects the drain task.
+	 * The event stays queued, and is run by the next drain which is scheduled.
+	 */
+	public void submit(Event event, HandlerExecutor[] handlers){
+		queue.add(new Deferred(event, handlers));
+		schedule();
+	}
+	
+	/**
+	 * Schedules a drain task if there is not one already scheduled. If the
+	 * executor rejects the task, the flag is cleared again so that the next
+	 * submit() tries again, rather than queueing events forever.
+	 * @throws RejectedExecutionException If the executor is shut down or saturated
+	 */
+	private void schedule(){
+		if(draining.compareAndSet(false, true)){
+			try{
+				executor.execute(drainer);
+			}
+			catch(RuntimeException e){
+				draining.set(false);
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Runs all of the queued events. Only one thread may be draining at once.
+	 */
+	private void drain(){
+		Deferred d;
+		while((d = queue.poll()) != null){
+			for(HandlerExecutor h : d.handlers){
+				if(manager.isSkipped(h, d.event)){
+					continue;
+				}
+				manager.invoke(h, d.event);
+			}
+		}
+		draining.set(false);
+		
+		//Something may have been queued after we finished polling, but before we unset the flag.
+		if(queue.isEmpty() == false){
+			schedule();
+		}
+	}
+	
+	/**
+	 * Creates the default executor for async handlers. This uses a virtual
+	 * thread per task where the JVM supports them, otherwise a single daemon thread.
+	 * @return The executor
+	 */
+	public static Executor newExecutor(){
+		try{
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(Exception e){
+			//Virtual threads are not available (Java < 21)
+		}
+		
+		return Executors.newSingleThreadExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "EventManager-Async");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * An event and the handlers which are yet to be run for it.
+	 */
+	private static class Deferred{
+		private Event event;
+		private HandlerExecutor[] handlers;
+		
+		public Deferred(Event event, HandlerExecutor[] handlers){
+			this.event = event;
+			this.handlers = handlers;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.maxgamer.event;
+
+import java.util.List;
+
+/**
+ * Calls a single batch @EventHandler method on a listener, which is one that
+ * accepts a List of events rather than a single event.
+ * @author netherfoam
+ * @see HandlerInvoker
+ */
+public interface BatchInvoker {
+	/**
+	 * Calls the handler method on the given target with the given events.
+	 * @param target The listener which owns the method
+	 * @param events The events to pass to the method
+	 * @throws Throwable Anything thrown by the handler method itself.
+	 */
+	public void invoke(Object target, List<? extends Event> events) throws Throwable;
+}
@@ -0,0 +1,28 @@
+package org.maxgamer.event;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an Event class which may be sent to another process through an
+ * EventBridge. The class must have a no-args constructor, and its fields
+ * (Including inherited ones) may only be primitives, Strings or enums.
+ * Static and transient fields are not sent.
+ * 
+ * Both processes must give the class the same id, which is sent instead of
+ * the class name.
+ * @author netherfoam
+ * @see EventBridge
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Bridged {
+	/**
+	 * The id of the event class, which must be unique among the events sent
+	 * over a bridge, and the same in both processes.
+	 * @return The id, from 0 to 65535
+	 */
+	int id();
+}
@@ -4,6 +4,7 @@ package org.maxgamer.event;
  * Represents an action that may be cancelled once called.
  * @author netherfoam
  */
+@EventInterface
 public interface Cancellable {
 	/**
 	 * Returns true if this action is cancelled.
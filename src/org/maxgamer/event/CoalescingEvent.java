@@ -0,0 +1,20 @@
+package org.maxgamer.event;
+
+/**
+ * An event which may be merged with other events of the same class and
+ * coalescing key, when posted to a DeferredEventQueue during the same tick.
+ * For example, an inventory change event keyed by the inventory means that
+ * changing 28 slots in one tick only calls the listeners once.
+ * @author netherfoam
+ * @see DeferredEventQueue
+ */
+@EventInterface
+public interface CoalescingEvent {
+	/**
+	 * The key which identifies duplicates of this event. Two events posted in
+	 * the same tick are merged if they have the same class and their keys are
+	 * equal. 
+	 * @return The coalescing key, or null if this event should never be merged.
+	 */
+	public Object getCoalescingKey();
+}
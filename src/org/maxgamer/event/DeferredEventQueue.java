@@ -0,0 +1,145 @@
+package org.maxgamer.event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.BinaryOperator;
+
+/**
+ * Collects events during a tick, and calls them all through the EventManager
+ * when flush() is called at the end of the tick. Events which implement
+ * CoalescingEvent are merged with any event of the same class and coalescing
+ * key that is already waiting, so that bulk operations (Such as changing every
+ * slot of an inventory) only call the listeners once.
+ * 
+ * By default the newest event replaces the waiting one (Last wins), but keeps
+ * its place in the queue. A merge function may be set for each class of event
+ * with setMerger(). Events are called in the order they were first posted.
+ * 
+ * Any thread may post events. Events posted while the queue is being flushed
+ * are called by the next flush.
+ * @author netherfoam
+ */
+public class DeferredEventQueue {
+	/** The manager to call events through */
+	private EventManager manager;
+	/** The waiting events, in the order they were posted */
+	private ArrayList<Event> pending = new ArrayList<Event>();
+	/** The index in pending of each waiting coalescing event, by class and then key */
+	private HashMap<Class<?>, HashMap<Object, Integer>> index = new HashMap<Class<?>, HashMap<Object, Integer>>();
+	/** The merge function for each class of event, if not last-wins */
+	private HashMap<Class<?>, BinaryOperator<Event>> mergers = new HashMap<Class<?>, BinaryOperator<Event>>();
+	/** The number of events which have been merged into another event instead of being called */
+	private long coalesced;
+	
+	/**
+	 * Constructs a new DeferredEventQueue.
+	 * @param manager The manager to call events through when flushed
+	 */
+	public DeferredEventQueue(EventManager manager){
+		if(manager == null){
+			throw new NullPointerException("Manager may not be null.");
+		}
+		this.manager = manager;
+	}
+	
+	/**
+	 * Sets how two events of the given class with the same coalescing key are
+	 * merged. The function is given the waiting event and the newly posted
+	 * event, and returns the event which should be called instead of both.
+	 * This may be one of them, modified, or a new event.
+	 * @param type The exact class of the events
+	 * @param merger The merge function, or null for last-wins.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <E extends Event> void setMerger(Class<E> type, BinaryOperator<E> merger){
+		if(merger == null){
+			mergers.remove(type);
+		}
+		else{
+			mergers.put(type, (BinaryOperator<Event>) merger);
+		}
+	}
+	
+	/**
+	 * Queues the given event to be called at the next flush(). If the event is
+	 * a CoalescingEvent and an event of the same class and key is waiting, the
+	 * two are merged instead.
+	 * @param event The event
+	 */
+	public synchronized void post(Event event){
+		if(event == null){
+			throw new NullPointerException("Event may not be null!");
+		}
+		
+		Object key = event instanceof CoalescingEvent ? ((CoalescingEvent) event).getCoalescingKey() : null;
+		if(key == null){
+			pending.add(event);
+			return;
+		}
+		
+		HashMap<Object, Integer> keys = index.get(event.getClass());
+		if(keys == null){
+			keys = new HashMap<Object, Integer>();
+			index.put(event.getClass(), keys);
+		}
+		
+		Integer slot = keys.get(key);
+		if(slot == null){
+			keys.put(key, pending.size());
+			pending.add(event);
+			return;
+		}
+		
+		BinaryOperator<Event> merger = mergers.get(event.getClass());
+		Event previous = pending.get(slot);
+		pending.set(slot, merger == null ? event : merger.apply(previous, event));
+		coalesced++;
+	}
+	
+	/**
+	 * Calls every waiting event through the EventManager, in the order they
+	 * were posted. This should be called once at the end of each tick.
+	 * @return The number of events called.
+	 */
+	public int flush(){
+		ArrayList<Event> events;
+		synchronized(this){
+			if(pending.isEmpty()){
+				return 0;
+			}
+			events = pending;
+			pending = new ArrayList<Event>(events.size());
+			index.clear();
+		}
+		
+		for(int i = 0; i < events.size(); i++){
+			manager.callEvent(events.get(i));
+		}
+		return events.size();
+	}
+	
+	/**
+	 * Discards every waiting event without calling it.
+	 */
+	public synchronized void clear(){
+		pending.clear();
+		index.clear();
+	}
+	
+	/**
+	 * The number of events waiting for the next flush.
+	 * @return The number of events waiting for the next flush.
+	 */
+	public synchronized int size(){
+		return pending.size();
+	}
+	
+	/**
+	 * The total number of events which were merged into a waiting event,
+	 * and so were not called separately. 
+	 * @return The number of events merged since this queue was created.
+	 */
+	public synchronized long getCoalescedCount(){
+		return coalesced;
+	}
+}
@@ -0,0 +1,113 @@
+package org.maxgamer.event;
+
+import org.maxgamer.structure.HashTrie;
+
+/**
+ * The handlers which accept a single concrete class of event, in the order
+ * they should be called. A table is immutable once built.
+ * 
+ * For a class of KeyedEvent, handlers which were registered with a key are
+ * not in the table itself. Instead, the table holds a sub-table for each key, which contains the
+ * unkeyed handlers merged with the handlers for that key. The sub-tables are
+ * kept in a HashTrie, so replacing the sub-table for one key does not copy
+ * the sub-tables of every other key. Other classes of event have no routing
+ * key, so their tables hold keyed handlers alongside the unkeyed ones.
+ * @author netherfoam
+ */
+public class DispatchTable {
+	/** Handlers to call on the calling thread, in priority order */
+	final HandlerExecutor[] handlers;
+	/** Fire-and-forget handlers to queue on the async executor, in priority order */
+	final HandlerExecutor[] deferred;
+	/** The index of the first MONITOR handler in handlers, or handlers.length if there are none */
+	final int monitor;
+	/** The table to use for each routing key which has keyed handlers, or null if there are none. Never modified. */
+	final HashTrie<Object, DispatchTable> keyed;
+	
+	public DispatchTable(HandlerExecutor[] handlers, HandlerExecutor[] deferred){
+		this(handlers, deferred, null);
+	}
+	
+	public DispatchTable(HandlerExecutor[] handlers, HandlerExecutor[] deferred, HashTrie<Object, DispatchTable> keyed){
+		this.handlers = handlers;
+		this.deferred = deferred;
+		this.keyed = keyed == null || keyed.isEmpty() ? null : keyed;
+		
+		int monitor = handlers.length;
+		while(monitor > 0 && handlers[monitor - 1].getPriority() == EventPriority.MONITOR){
+			monitor--;
+		}
+		this.monitor = monitor;
+	}
+	
+	/**
+	 * The handlers which are called on the thread which calls the event.
+	 * This array must not be modified.
+	 * @return The handlers, in priority order.
+	 */
+	public HandlerExecutor[] getHandlers(){
+		return handlers;
+	}
+	
+	/**
+	 * The fire-and-forget handlers which are called on the async executor.
+	 * This array must not be modified.
+	 * @return The handlers, in priority order.
+	 */
+	public HandlerExecutor[] getDeferred(){
+		return deferred;
+	}
+	
+	/**
+	 * The index of the first MONITOR handler in getHandlers(). Dispatch can
+	 * skip straight to this index once an event has been cancelled.
+	 * @return The index, or getHandlers().length if there are no MONITOR handlers.
+	 */
+	public int getMonitorIndex(){
+		return monitor;
+	}
+	
+	/**
+	 * Fetches the table for events with the given routing key. This is a
+	 * single hash lookup, which visits a few trie nodes at most.
+	 * @param key The routing key of the event, may be null
+	 * @return The table including the handlers for the key, or this table if there are none.
+	 */
+	public DispatchTable forKey(Object key){
+		if(keyed == null || key == null){
+			return this;
+		}
+		DispatchTable table = keyed.get(key);
+		return table == null ? this : table;
+	}
+	
+	/**
+	 * Returns true if any handlers were registered with a key for this event.
+	 * @return true if any handlers were registered with a key for this event.
+	 */
+	public boolean isKeyed(){
+		return keyed != null;
+	}
+	
+	/**
+	 * Creates a copy of this table with the sub-table for the given key replaced.
+	 * The sub-tables of other keys are shared with this table.
+	 * @param key The routing key
+	 * @param table The new sub-table, or null to remove the key
+	 * @return The new table
+	 */
+	DispatchTable withKey(Object key, DispatchTable table){
+		HashTrie<Object, DispatchTable> next = keyed == null ? HashTrie.<Object, DispatchTable>empty() : keyed;
+		next = table == null ? next.remove(key) : next.put(key, table);
+		return new DispatchTable(handlers, deferred, next);
+	}
+	
+	/**
+	 * Returns true if there are no handlers for the event at all. A table with
+	 * sub-tables is not empty, since an event with one of their keys runs them.
+	 * @return true if there are no handlers for the event at all.
+	 */
+	public boolean isEmpty(){
+		return handlers.length == 0 && deferred.length == 0 && keyed == null;
+	}
+}
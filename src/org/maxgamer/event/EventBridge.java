@@ -0,0 +1,312 @@
+package org.maxgamer.event;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.maxgamer.io.InputStreamWrapper;
+import org.maxgamer.io.OutputStreamWrapper;
+
+/**
+ * Mirrors @Bridged events between the EventManagers of two processes, such as
+ * a login server and a world server on the same machine, over a socket or any
+ * other pair of streams (Eg. the streams of a Unix domain SocketChannel).
+ * 
+ * Each bridged event which is called locally is written by the EventCodec as
+ * soon as it has been called, and is sent by a writer thread. The writer sends
+ * every event which is waiting as a single frame, with a single write, so a
+ * burst of events costs a few system calls rather than one per event. A frame
+ * is the length of its body (4 bytes), the number of events (4 bytes) and then
+ * the events.
+ * 
+ * A reader thread decodes the frames from the other process, and queues their
+ * events until drain() is called. drain() calls them through the local
+ * EventManager, typically from the game thread once per tick. Events received
+ * from the other process are not sent back to it.
+ * 
+ * Events are sent after the HIGHEST handlers, and are not sent if they were
+ * cancelled. Both processes must bridge the same classes.
+ * @author netherfoam
+ */
+public class EventBridge {
+	/** The manager which bridged events are called through */
+	private EventManager manager;
+	/** Writes and reads the events */
+	private EventCodec codec = new EventCodec();
+	/** The stream frames are read from */
+	private DataInputStream in;
+	/** The stream frames are written to */
+	private OutputStream out;
+	/** The events which have been written, but not yet sent. Guarded by this */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	/** Writes events to pending. Guarded by this */
+	private OutputStreamWrapper encoder = new OutputStreamWrapper(pending);
+	/** The number of events in pending. Guarded by this */
+	private int count;
+	/** Events from the other process, waiting to be called */
+	private ConcurrentLinkedQueue<Event> received = new ConcurrentLinkedQueue<Event>();
+	/** The received event which is being called now, so that it is not sent back. Volatile since async handlers may send() from other threads */
+	private volatile Event current;
+	/** The registration of the handlers which send events */
+	private ArrayList<Registration> registrations = new ArrayList<Registration>();
+	/** False once the bridge has been closed */
+	private volatile boolean open = true;
+	/** Reads frames from the other process */
+	private Thread reader;
+	/** Writes frames to the other process */
+	private Thread writer;
+	
+	/**
+	 * Constructs a new EventBridge over the given socket. Nagle's algorithm is
+	 * disabled, as events are already batched into frames.
+	 * @param manager The manager to call and listen for events through
+	 * @param socket The connection to the other process
+	 * @throws IOException If the socket's streams can't be opened
+	 */
+	public EventBridge(EventManager manager, Socket socket) throws IOException{
+		this(manager, socket.getInputStream(), socket.getOutputStream());
+		socket.setTcpNoDelay(true);
+	}
+	
+	/**
+	 * Constructs a new EventBridge over the given streams.
+	 * @param manager The manager to call and listen for events through
+	 * @param in The stream to read events from the other process
+	 * @param out The stream to write events to the other process
+	 */
+	public EventBridge(EventManager manager, InputStream in, OutputStream out){
+		if(manager == null){
+			throw new NullPointerException("Manager may not be null.");
+		}
+		this.manager = manager;
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.out = out;
+	}
+	
+	/**
+	 * Bridges the given class of event. Events of exactly this class which are
+	 * called locally will be sent to the other process, and events of this
+	 * class from the other process can be read.
+	 * @param type The class of event, which must be annotated with @Bridged
+	 * @throws IllegalArgumentException If the class can't be bridged
+	 */
+	public synchronized void bridge(final Class<? extends Event> type){
+		if(codec.isRegistered(type)){
+			return;
+		}
+		codec.register(type);
+		
+		EventListener listener = new EventListener(){};
+		HandlerExecutor h = new HandlerExecutor(listener, type, EventPriority.HIGHEST, false, true, 
+				"EventBridge.send(" + type.getName() + ")", new HandlerInvoker(){
+			@Override
+			public void invoke(Object target, Event event) throws Throwable{
+				//Subclasses are not bridged unless they're registered too.
+				if(event.getClass() == type){
+					send(event);
+				}
+			}
+		});
+		ArrayList<HandlerExecutor> list = new ArrayList<HandlerExecutor>(1);
+		list.add(h);
+		registrations.add(manager.registerHandlers(listener, list));
+	}
+	
+	/**
+	 * Starts the reader and writer threads.
+	 */
+	public synchronized void start(){
+		if(reader != null){
+			throw new IllegalStateException("Bridge has already been started.");
+		}
+		
+		reader = new Thread("EventBridge-Reader"){
+			@Override
+			public void run(){
+				read();
+			}
+		};
+		writer = new Thread("EventBridge-Writer"){
+			@Override
+			public void run(){
+				write();
+			}
+		};
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+	
+	/**
+	 * Writes the given event to be sent to the other process. This is called
+	 * by the bridge's handlers, but may also be used to send an event which
+	 * has not been called locally.
+	 * @param event The event, whose class must have been bridged
+	 * @throws IllegalArgumentException If the event's class has not been bridged
+	 */
+	public void send(Event event){
+		if(event == current){
+			return; //Received from the other process, so it doesn't need it again.
+		}
+		
+		synchronized(this){
+			if(open == false){
+				return;
+			}
+			try{
+				codec.write(encoder, event);
+			}
+			catch(IOException e){
+				//Can't happen when writing to a byte array, unless the event can't be read.
+				e.printStackTrace();
+				return;
+			}
+			count++;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Calls every event received from the other process, in the order they
+	 * were sent, through the local EventManager.
+	 * @return The number of events called
+	 */
+	public int drain(){
+		int n = 0;
+		Event event;
+		while((event = received.poll()) != null){
+			current = event;
+			try{
+				manager.callEvent(event);
+			}
+			finally{
+				current = null;
+			}
+			n++;
+		}
+		return n;
+	}
+	
+	/**
+	 * The number of events received from the other process which are waiting for drain().
+	 * @return The number of events waiting to be called
+	 */
+	public int getBacklog(){
+		return received.size();
+	}
+	
+	/**
+	 * Returns true until the bridge has been closed, or the connection was lost.
+	 * @return true if the bridge is open
+	 */
+	public boolean isOpen(){
+		return open;
+	}
+	
+	/**
+	 * Closes the bridge and its streams, and stops sending events. Events which
+	 * have been received but not drained can still be drained.
+	 */
+	public void close(){
+		synchronized(this){
+			if(open == false){
+				return;
+			}
+			open = false;
+			notifyAll();
+			
+			for(Registration r : registrations){
+				r.unregister();
+			}
+			registrations.clear();
+		}
+		
+		try{
+			in.close();
+		}
+		catch(IOException e){}
+		try{
+			out.close();
+		}
+		catch(IOException e){}
+	}
+	
+	/**
+	 * Waits for events to be written, and sends them as a frame, until closed.
+	 */
+	private void write(){
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		OutputStreamWrapper header = new OutputStreamWrapper(frame);
+		try{
+			while(true){
+				byte[] body;
+				int n;
+				synchronized(this){
+					while(count == 0 && open){
+						wait();
+					}
+					if(open == false){
+						return;
+					}
+					body = pending.toByteArray();
+					n = count;
+					pending.reset();
+					count = 0;
+				}
+				
+				//Events which are sent while we write this will be in the next frame.
+				frame.reset();
+				header.writeInt(body.length);
+				header.writeInt(n);
+				frame.write(body);
+				frame.writeTo(out);
+				out.flush();
+			}
+		}
+		catch(InterruptedException e){
+			//Stop writing.
+		}
+		catch(IOException e){
+			if(open){
+				System.out.println("EventBridge lost connection while writing: " + e);
+			}
+		}
+		close();
+	}
+	
+	/**
+	 * Reads frames and queues their events, until closed.
+	 */
+	private void read(){
+		try{
+			while(open){
+				int length = in.readInt();
+				int n = in.readInt();
+				byte[] body = new byte[length];
+				in.readFully(body);
+				
+				InputStreamWrapper events = new InputStreamWrapper(body);
+				for(int i = 0; i < n; i++){
+					received.add(codec.read(events));
+				}
+			}
+		}
+		catch(EOFException e){
+			//The other process closed the connection.
+		}
+		catch(IOException e){
+			if(open){
+				System.out.println("EventBridge lost connection while reading: " + e);
+			}
+		}
+		close();
+	}
+}
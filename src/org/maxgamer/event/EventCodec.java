@@ -0,0 +1,248 @@
+package org.maxgamer.event;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.maxgamer.io.InputStreamWrapper;
+import org.maxgamer.io.OutputStreamWrapper;
+
+/**
+ * Writes and reads @Bridged events in a compact binary form. Each event is
+ * written as its 2 byte id, followed by each of its fields in name order,
+ * with no names or padding. Strings are written as their length in UTF-8
+ * bytes (An int, -1 for null), followed by the bytes, so any text survives
+ * the trip, including NULL characters. Enums are written as their ordinal,
+ * or -1 for null.
+ * 
+ * The fields of each class are looked up once, when it is registered.
+ * @author netherfoam
+ */
+public class EventCodec {
+	/** Sorts fields by name, so both processes agree on the order */
+	private static final Comparator<Field> NAME_ORDER = new Comparator<Field>(){
+		@Override
+		public int compare(Field a, Field b){
+			int c = a.getName().compareTo(b.getName());
+			return c != 0 ? c : a.getDeclaringClass().getName().compareTo(b.getDeclaringClass().getName());
+		}
+	};
+	
+	/** The format of each registered class, by class */
+	private HashMap<Class<?>, Format> byClass = new HashMap<Class<?>, Format>();
+	/** The format of each registered class, by id */
+	private HashMap<Integer, Format> byId = new HashMap<Integer, Format>();
+	
+	/**
+	 * Registers the given event class, so that it can be written and read.
+	 * @param type The class, which must be annotated with @Bridged
+	 * @throws IllegalArgumentException If the class is not annotated, has no
+	 * no-args constructor, has a field which can't be written, or its id is taken.
+	 */
+	public synchronized void register(Class<? extends Event> type){
+		if(byClass.containsKey(type)){
+			return;
+		}
+		
+		Bridged meta = type.getAnnotation(Bridged.class);
+		if(meta == null){
+			throw new IllegalArgumentException(type.getName() + " must be annotated with @Bridged");
+		}
+		if(meta.id() < 0 || meta.id() > 0xFFFF){
+			throw new IllegalArgumentException(type.getName() + " has an id out of range: " + meta.id());
+		}
+		if(byId.containsKey(meta.id())){
+			throw new IllegalArgumentException(type.getName() + " has the same id as " + byId.get(meta.id()).type.getName());
+		}
+		
+		Format format = new Format(type, meta.id());
+		byClass.put(type, format);
+		byId.put(meta.id(), format);
+	}
+	
+	/**
+	 * Returns true if the given class has been registered.
+	 * @param type The class
+	 * @return true if the given class has been registered.
+	 */
+	public synchronized boolean isRegistered(Class<?> type){
+		return byClass.containsKey(type);
+	}
+	
+	/**
+	 * Writes the given event.
+	 * @param out The stream to write to
+	 * @param event The event, whose class must have been registered
+	 * @throws IOException If the stream is closed
+	 * @throws IllegalArgumentException If the class has not been registered
+	 */
+	public void write(OutputStreamWrapper out, Event event) throws IOException{
+		Format format;
+		synchronized(this){
+			format = byClass.get(event.getClass());
+		}
+		if(format == null){
+			throw new IllegalArgumentException(event.getClass().getName() + " has not been registered with the codec.");
+		}
+		
+		out.writeShort(format.id);
+		try{
+			for(Field f : format.fields){
+				writeField(out, f, event);
+			}
+		}
+		catch(IllegalAccessException e){
+			throw new IOException("Failed to read field of " + event.getClass().getName(), e);
+		}
+	}
+	
+	/**
+	 * Reads an event.
+	 * @param in The stream to read from
+	 * @return The event
+	 * @throws IOException If the stream is closed, or the event's id is unknown
+	 */
+	public Event read(InputStreamWrapper in) throws IOException{
+		int id = in.readUnsignedShort();
+		Format format;
+		synchronized(this){
+			format = byId.get(id);
+		}
+		if(format == null){
+			throw new IOException("Unknown event id " + id + ". Both processes must register the same events.");
+		}
+		
+		try{
+			Event event = format.constructor.newInstance();
+			for(Field f : format.fields){
+				readField(in, f, event);
+			}
+			return event;
+		}
+		catch(ReflectiveOperationException e){
+			throw new IOException("Failed to construct " + format.type.getName(), e);
+		}
+	}
+	
+	/**
+	 * Writes a single field of the given event.
+	 */
+	private static void writeField(OutputStreamWrapper out, Field f, Object o) throws IOException, IllegalAccessException{
+		Class<?> t = f.getType();
+		if(t == int.class) out.writeInt(f.getInt(o));
+		else if(t == long.class) out.writeLong(f.getLong(o));
+		else if(t == boolean.class) out.writeByte(f.getBoolean(o) ? 1 : 0);
+		else if(t == byte.class) out.writeByte(f.getByte(o));
+		else if(t == short.class) out.writeShort(f.getShort(o));
+		else if(t == char.class) out.writeShort(f.getChar(o));
+		else if(t == float.class) out.writeFloat(f.getFloat(o));
+		else if(t == double.class) out.writeDouble(f.getDouble(o));
+		else if(t == String.class){
+			String s = (String) f.get(o);
+			if(s == null){
+				out.writeInt(-1);
+			}
+			else{
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+		else{
+			Enum<?> e = (Enum<?>) f.get(o);
+			out.writeShort(e == null ? -1 : e.ordinal());
+		}
+	}
+	
+	/**
+	 * Reads a single field into the given event.
+	 */
+	private static void readField(InputStreamWrapper in, Field f, Object o) throws IOException, IllegalAccessException{
+		Class<?> t = f.getType();
+		if(t == int.class) f.setInt(o, in.readInt());
+		else if(t == long.class) f.setLong(o, in.readLong());
+		else if(t == boolean.class) f.setBoolean(o, in.readByte() != 0);
+		else if(t == byte.class) f.setByte(o, in.readByte());
+		else if(t == short.class) f.setShort(o, in.readShort());
+		else if(t == char.class) f.setChar(o, (char) in.readUnsignedShort());
+		else if(t == float.class) f.setFloat(o, in.readFloat());
+		else if(t == double.class) f.setDouble(o, in.readDouble());
+		else if(t == String.class){
+			int length = in.readInt();
+			if(length < -1){
+				throw new IOException("Invalid length " + length + " for " + f.getDeclaringClass().getName() + "." + f.getName());
+			}
+			if(length < 0){
+				f.set(o, null);
+			}
+			else{
+				byte[] bytes = new byte[length];
+				for(int i = 0; i < length; i++){
+					int b = in.read();
+					if(b < 0){
+						throw new EOFException("Stream ended inside " + f.getDeclaringClass().getName() + "." + f.getName());
+					}
+					bytes[i] = (byte) b;
+				}
+				f.set(o, new String(bytes, StandardCharsets.UTF_8));
+			}
+		}
+		else{
+			int ordinal = in.readShort();
+			Object[] values = t.getEnumConstants();
+			if(ordinal >= values.length){
+				throw new IOException("Unknown constant " + ordinal + " of " + t.getName());
+			}
+			f.set(o, ordinal < 0 ? null : values[ordinal]);
+		}
+	}
+	
+	/**
+	 * The id, constructor and fields of a registered class.
+	 */
+	private static class Format{
+		private Class<? extends Event> type;
+		private int id;
+		private Constructor<? extends Event> constructor;
+		private Field[] fields;
+		
+		public Format(Class<? extends Event> type, int id){
+			this.type = type;
+			this.id = id;
+			
+			try{
+				this.constructor = type.getDeclaredConstructor();
+				this.constructor.setAccessible(true);
+			}
+			catch(NoSuchMethodException e){
+				throw new IllegalArgumentException(type.getName() + " must have a no-args constructor");
+			}
+			
+			ArrayList<Field> list = new ArrayList<Field>();
+			for(Class<?> c = type; c != null && c != Event.class; c = c.getSuperclass()){
+				for(Field f : c.getDeclaredFields()){
+					if(Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers()) || f.isSynthetic()){
+						continue;
+					}
+					if(f.getType().isPrimitive() == false && f.getType() != String.class && f.getType().isEnum() == false){
+						throw new IllegalArgumentException(type.getName() + "." + f.getName() + " can't be bridged, only primitives, Strings and enums can be.");
+					}
+					if(Modifier.isFinal(f.getModifiers())){
+						throw new IllegalArgumentException(type.getName() + "." + f.getName() + " can't be bridged, as it is final.");
+					}
+					f.setAccessible(true);
+					list.add(f);
+				}
+			}
+			this.fields = list.toArray(new Field[list.size()]);
+			Arrays.sort(fields, NAME_ORDER);
+		}
+	}
+}
@@ -9,4 +9,18 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 public @interface EventHandler {
     public EventPriority priority() default EventPriority.NORMAL;
+    
+    /**
+     * Marks the handler as fire-and-forget. When the EventManager has an async
+     * executor, the handler is called on that executor after all synchronous
+     * handlers have finished, so it may not cancel or modify the event.
+     * MONITOR handlers are always treated this way in async mode.
+     */
+    public boolean async() default false;
+    
+    /**
+     * If true, the handler is not called for events which implement Cancellable
+     * and have already been cancelled by a handler with a lower priority.
+     */
+    public boolean ignoreCancelled() default false;
 }
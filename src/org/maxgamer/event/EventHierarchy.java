@@ -0,0 +1,76 @@
+package org.maxgamer.event;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Caches the full set of supertypes of each event class. This is every
+ * superclass up to and including Event, and every interface implemented
+ * by the class or any of its superclasses. A handler accepts an event if
+ * the type the handler subscribes to is in this set, which means a listener
+ * may subscribe to an abstract base event, or to an interface such as
+ * Cancellable, and receive every event of that kind.
+ * 
+ * The set for a class is built the first time it is needed. It is stored
+ * with the class, so classes loaded by a ScriptLoader can still be unloaded.
+ * @author netherfoam
+ */
+public class EventHierarchy {
+	/** The supertypes of each class, built on first use */
+	private static final ClassValue<Set<Class<?>>> SUPERTYPES = new ClassValue<Set<Class<?>>>(){
+		@Override
+		protected Set<Class<?>> computeValue(Class<?> type){
+			return Collections.unmodifiableSet(build(type));
+		}
+	};
+	
+	private EventHierarchy(){
+		//Static utility class
+	}
+	
+	/**
+	 * Fetches the class itself, its superclasses and all of their interfaces.
+	 * @param type The class
+	 * @return The supertypes of the class, including itself. Never modified.
+	 */
+	public static Set<Class<?>> getSupertypes(Class<?> type){
+		return SUPERTYPES.get(type);
+	}
+	
+	/**
+	 * Returns true if a handler which subscribes to the given type accepts events of the given class.
+	 * @param subscribed The type the handler subscribes to
+	 * @param type The concrete class of the event
+	 * @return true if the handler accepts the event.
+	 */
+	public static boolean accepts(Class<?> subscribed, Class<?> type){
+		return getSupertypes(type).contains(subscribed);
+	}
+	
+	/**
+	 * Walks the superclasses and interfaces of the given class.
+	 * @param type The class
+	 * @return The supertypes of the class, including itself.
+	 */
+	private static Set<Class<?>> build(Class<?> type){
+		HashSet<Class<?>> types = new HashSet<Class<?>>();
+		ArrayDeque<Class<?>> queue = new ArrayDeque<Class<?>>();
+		queue.add(type);
+		
+		Class<?> c;
+		while((c = queue.poll()) != null){
+			if(types.add(c) == false){
+				continue; //Interfaces may be reached more than once.
+			}
+			if(c.getSuperclass() != null){
+				queue.add(c.getSuperclass());
+			}
+			for(Class<?> i : c.getInterfaces()){
+				queue.add(i);
+			}
+		}
+		return types;
+	}
+}
@@ -0,0 +1,18 @@
+package org.maxgamer.event;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface which events implement, so that handlers may subscribe
+ * to it (Eg. Cancellable). A handler which accepts an interface without this
+ * annotation, such as Runnable, is not a valid event handler.
+ * @author netherfoam
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface EventInterface {
+	
+}
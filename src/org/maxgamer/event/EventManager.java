@@ -1,67 +1,395 @@
 package org.maxgamer.event;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 import org.maxgamer.io.ScriptLoader;
 
 public class EventManager {
-	private HashMap<EventPriority, LinkedList<HandlerExecutor>> listeners;
+	/**
+	 * Every registered handler, and the dispatch tables built from them. The
+	 * registry is immutable, so threads calling events read it without locking.
+	 * Writers replace it with a modified copy while holding the writeLock.
+	 */
+	private volatile HandlerRegistry registry = new HandlerRegistry();
+	/** Held while replacing the registry, so that concurrent writers don't lose each other's changes */
+	private final Object writeLock = new Object();
+	/** The class loader for the listeners from the last reload(), closed when they are replaced */
+	private URLClassLoader loader;
+	/** True if only MONITOR handlers should be called after an event is cancelled */
+	private volatile boolean stopOnCancel;
+	/** True if the time taken by each handler should be recorded */
+	private volatile boolean profiling;
+	/** Handlers which take longer than this many nanoseconds are reported as slow, 0 to disable */
+	private volatile long slowThreshold = 50000000L;
+	/** Limits on the time and failures of each handler, or null for no limits */
+	private volatile ExecutionBudget budget;
+	
+	/**
+	 * Sets whether dispatch stops once an event is cancelled. If true, as soon
+	 * as a Cancellable event is cancelled, the remaining handlers are skipped,
+	 * except for MONITOR handlers, which are always called so that loggers can
+	 * see the outcome. If false (the default), only handlers marked with
+	 * @EventHandler(ignoreCancelled = true) are skipped.
+	 * @param stop true to stop dispatch when an event is cancelled
+	 */
+	public void setStopOnCancel(boolean stop){
+		this.stopOnCancel = stop;
+	}
+	
+	/**
+	 * Returns true if dispatch stops once an event is cancelled.
+	 * @return true if dispatch stops once an event is cancelled.
+	 * @see EventManager#setStopOnCancel(boolean)
+	 */
+	public boolean isStopOnCancel(){
+		return stopOnCancel;
+	}
+	
+	/**
+	 * Enables or disables async mode. In async mode, fire-and-forget handlers
+	 * (MONITOR handlers, and those marked with @EventHandler(async = true)) are
+	 * queued and run on the given executor, in priority order, after the
+	 * remaining handlers have been run on the calling thread. Those handlers
+	 * will see whether the event was cancelled, but may not cancel it.
+	 * @param executor The executor to run async handlers on, or null to run all handlers on the calling thread.
+	 * @see AsyncDispatcher#newExecutor()
+	 */
+	public void setAsyncExecutor(Executor executor){
+		AsyncDispatcher async = executor == null ? null : new AsyncDispatcher(this, executor);
+		synchronized(writeLock){
+			registry = registry.setAsync(async);
+		}
+	}
+	
+	/**
+	 * The executor which fire-and-forget handlers are run on
+	 * @return The executor, or null if async mode is disabled.
+	 */
+	public Executor getAsyncExecutor(){
+		AsyncDispatcher async = registry.getAsync();
+		return async == null ? null : async.getExecutor();
+	}
+	
+	/**
+	 * Enables or disables parallel MONITOR mode. In this mode, the MONITOR
+	 * handlers of an event are run concurrently on the given executor, once the
+	 * handlers of every other priority have finished on the calling thread.
+	 * MONITOR handlers must therefore be thread safe. This takes precedence
+	 * over async mode for MONITOR handlers.<br/>
+	 * <br/>
+	 * If wait is true, callEvent() runs some of the handlers itself and returns
+	 * once all of them have finished. Otherwise it returns straight away, and the
+	 * handlers may still be running afterwards.<br/>
+	 * <br/>
+	 * Events called through callEvents() with handlerMajor = true still run their
+	 * MONITOR handlers on the calling thread.
+	 * @param executor The executor to run MONITOR handlers on, such as ForkJoinPool.commonPool(), or null to disable
+	 * @param wait true if the calling thread should wait for the MONITOR handlers
+	 */
+	public void setMonitorExecutor(Executor executor, boolean wait){
+		MonitorDispatcher monitors = executor == null ? null : new MonitorDispatcher(this, executor, wait);
+		synchronized(writeLock){
+			registry = registry.setMonitors(monitors);
+		}
+	}
+	
+	/**
+	 * The executor which MONITOR handlers are run on
+	 * @return The executor, or null if MONITOR handlers are run on the calling thread.
+	 */
+	public Executor getMonitorExecutor(){
+		MonitorDispatcher monitors = registry.getMonitors();
+		return monitors == null ? null : monitors.getExecutor();
+	}
+	
+	/**
+	 * Returns true if callEvent() waits for MONITOR handlers which are run on the MONITOR executor.
+	 * @return true if callEvent() waits for MONITOR handlers, false if there is no MONITOR executor or it does not wait.
+	 */
+	public boolean isMonitorWait(){
+		MonitorDispatcher monitors = registry.getMonitors();
+		return monitors != null && monitors.isWait();
+	}
+	
+	/**
+	 * Enables or disables profiling. While profiling, the number of calls, total
+	 * and maximum time, and a latency histogram are recorded for each handler,
+	 * and handlers which go over the slow threshold are reported. While disabled,
+	 * the only cost is checking this flag.
+	 * @param profiling true to record timings
+	 * @see HandlerExecutor#getStats()
+	 */
+	public void setProfiling(boolean profiling){
+		this.profiling = profiling;
+	}
+	
+	/**
+	 * Returns true if the time taken by each handler is being recorded.
+	 * @return true if the time taken by each handler is being recorded.
+	 */
+	public boolean isProfiling(){
+		return profiling;
+	}
+	
+	/**
+	 * Sets the time after which a single call to a handler is considered slow.
+	 * The first slow call to each handler is printed, and all of them are counted.
+	 * @param nanos The threshold in nanoseconds, or 0 to disable.
+	 */
+	public void setSlowThreshold(long nanos){
+		this.slowThreshold = nanos;
+	}
+	
+	/**
+	 * The time after which a single call to a handler is considered slow.
+	 * @return The threshold in nanoseconds, or 0 if disabled.
+	 */
+	public long getSlowThreshold(){
+		return slowThreshold;
+	}
+	
+	/**
+	 * Fetches every registered handler which has been called while profiling,
+	 * sorted so that the handler with the most total time comes first.
+	 * @return The handlers, never null.
+	 */
+	public List<HandlerExecutor> getProfiledHandlers(){
+		ArrayList<HandlerExecutor> handlers = new ArrayList<HandlerExecutor>();
+		for(HandlerExecutor h : registry.getHandlers()){
+			if(h.getStats().getCount() > 0){
+				handlers.add(h);
+			}
+		}
+		Collections.sort(handlers, new Comparator<HandlerExecutor>(){
+			@Override
+			public int compare(HandlerExecutor a, HandlerExecutor b){
+				return Long.compare(b.getStats().getTotalNanos(), a.getStats().getTotalNanos());
+			}
+		});
+		return handlers;
+	}
+	
+	/**
+	 * Fetches every registered handler which has gone over the slow threshold while profiling.
+	 * @return The handlers, never null.
+	 */
+	public List<HandlerExecutor> getSlowHandlers(){
+		ArrayList<HandlerExecutor> handlers = new ArrayList<HandlerExecutor>();
+		for(HandlerExecutor h : getProfiledHandlers()){
+			if(h.getStats().isSlow()){
+				handlers.add(h);
+			}
+		}
+		return handlers;
+	}
+	
+	/**
+	 * Sets the execution budget for every handler. A handler which spends
+	 * more time, or throws more times, than the budget allows within its
+	 * window is quarantined. It is skipped for every event until the
+	 * cooldown has passed, and is reported when it is quarantined.
+	 * While there is no budget, nothing is recorded.
+	 * @param budget The budget, or null to disable budgets.
+	 * @see HandlerExecutor#getHealth()
+	 */
+	public void setBudget(ExecutionBudget budget){
+		this.budget = budget;
+	}
+	
+	/**
+	 * The execution budget for every handler
+	 * @return The budget, or null if budgets are disabled.
+	 */
+	public ExecutionBudget getBudget(){
+		return budget;
+	}
+	
+	/**
+	 * Fetches every registered handler which is currently quarantined.
+	 * @return The handlers, never null.
+	 */
+	public List<HandlerExecutor> getQuarantinedHandlers(){
+		ArrayList<HandlerExecutor> handlers = new ArrayList<HandlerExecutor>();
+		for(HandlerExecutor h : registry.getHandlers()){
+			if(h.getHealth().isQuarantined()){
+				handlers.add(h);
+			}
+		}
+		return handlers;
+	}
 	
+	/**
+	 * Clears the timing statistics of every registered handler.
+	 */
+	public void resetStats(){
+		for(HandlerExecutor h : registry.getHandlers()){
+			h.getStats().reset();
+		}
+	}
+	
+	/**
+	 * Unregisters all listeners, then finds and registers every listener class
+	 * in the bin folder which has the @AutoRegister annotation. Threads calling
+	 * events will see either the old listeners or the new ones, never a mixture.
+	 * 
+	 * If the listeners were compiled with the EventHandlerProcessor, the classes
+	 * are read from its index instead of searching the bin folder. The class
+	 * loader opened for the index is closed by the next reload(), once its
+	 * listeners have been replaced. It is not closed straight away, because the
+	 * listeners may still need it to load their other classes.
+	 */
 	public void reload(){
-		listeners = new HashMap<EventPriority, LinkedList<HandlerExecutor>>(EventPriority.values().length);
+		File folder = new File("bin");
+		if(new File(folder, ListenerIndex.INDEX).exists()){
+			URLClassLoader next = null;
+			try{
+				next = new URLClassLoader(new URL[]{folder.toURI().toURL()});
+				reload(next);
+				setLoader(next);
+				return;
+			}
+			catch(IOException e){
+				System.out.println("Failed to read listener index, searching " + folder + " instead.");
+				e.printStackTrace();
+				close(next);
+			}
+		}
 		
-		ScriptLoader<EventListener> listeners = new ScriptLoader<EventListener>(EventListener.class, new File("bin"));
+		ScriptLoader<EventListener> listeners = new ScriptLoader<EventListener>(EventListener.class, folder);
 		listeners.reload();
-		for(Class<EventListener> clazz : listeners.getScripts()){
+		publish(instantiate(listeners.getScripts()));
+		setLoader(null);
+	}
+	
+	/**
+	 * Remembers the class loader of the listeners which were just published,
+	 * and closes the class loader of the listeners they replaced.
+	 * @param next The new class loader, or null if reload() didn't open one
+	 */
+	private void setLoader(URLClassLoader next){
+		URLClassLoader old;
+		synchronized(writeLock){
+			old = loader;
+			loader = next;
+		}
+		close(old);
+	}
+	
+	/**
+	 * Closes the given class loader, which stops it holding the bin folder open.
+	 * @param loader The class loader, may be null
+	 */
+	private static void close(URLClassLoader loader){
+		if(loader == null){
+			return;
+		}
+		try{
+			loader.close();
+		}
+		catch(IOException e){
+			System.out.println("Failed to close listener class loader.");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Unregisters all listeners, then registers every listener class named in
+	 * the listener indexes generated by the EventHandlerProcessor which are
+	 * visible to the given class loader. No classes are searched for.
+	 * @param loader The class loader to read the indexes from
+	 * @throws IOException If an index could not be read
+	 */
+	public void reload(ClassLoader loader) throws IOException{
+		publish(instantiate(ListenerIndex.getListeners(loader)));
+	}
+	
+	/**
+	 * Replaces all registered listeners with the given handlers, keeping the async and MONITOR modes.
+	 * @param handlers The handlers
+	 */
+	private void publish(List<HandlerExecutor> handlers){
+		synchronized(writeLock){
+			registry = registry.clear().register(handlers);
+		}
+	}
+	
+	/**
+	 * Constructs each of the given listener classes which has the @AutoRegister
+	 * annotation, and fetches the handlers from them.
+	 * @param classes The listener classes
+	 * @return The handlers of all of the new listeners
+	 */
+	private ArrayList<HandlerExecutor> instantiate(Collection<? extends Class<?>> classes){
+		ArrayList<HandlerExecutor> handlers = new ArrayList<HandlerExecutor>();
+		for(Class<?> clazz : classes){
 			//We don't want interfaces or incomplete classes to be registered as commands.
 			if(clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())) continue;
+			if(EventListener.class.isAssignableFrom(clazz) == false) continue;
 			if(clazz.isAnnotationPresent(AutoRegister.class) == false) continue; //Don't autoregister.
 			
 			try{
-				EventListener listener = clazz.newInstance();
-				register(listener);
+				ListenerDispatcher dispatcher = ListenerIndex.getDispatcher(clazz);
+				EventListener listener = dispatcher == null ? null : dispatcher.create();
+				if(listener == null){
+					listener = (EventListener) clazz.getDeclaredConstructor().newInstance();
+				}
+				handlers.addAll(getHandlers(listener));
 			}
 			catch(Exception e){
 				System.out.println("Failed to register Generic Listener: " + clazz.getName());
 				e.printStackTrace();
 			}
 		}
+		return handlers;
 	}
 	
 	/**
-	 * Returns true if the given base class is a subclass of the given superclass.
-	 * @param base The base class
-	 * @param superClazz The class which might be a super class
-	 * @return true if the given base class is a subclass of the given superclass.
+	 * Registers the given action listener with the given priority. A listener may not be registered twice.
+	 * 
+	 * @param listener
+	 *            The listener object
+	 * @return The registration, which can be used to unregister the listener quickly.
 	 */
-	private static boolean isSuperClass(Class<?> base, Class<?> superClazz){
-		while(base != null){
-			if(base == superClazz){
-				return true;
-			}
-			base = base.getSuperclass();
-		}
-		return false;
+	public Registration register(EventListener listener) {
+		return register(listener, null);
 	}
 	
 	/**
-	 * Registers the given action listener with the given priority. A listener may not be registered twice.
+	 * Registers the given listener for a single routing key. Its handlers still
+	 * receive every event which is not a KeyedEvent, but only receive KeyedEvents
+	 * whose routing key equals the given key. The handlers for a key are found
+	 * with one hash lookup when the event is called, so registering thousands of
+	 * keyed listeners (Eg. one per player) does not slow down dispatch.
 	 * 
-	 * @param listener
-	 *            The listener object
-	 * @param priority
-	 *            The priority to register it as. Parsing null will set priority to ActionPriority.NORMAL
+	 * @param listener The listener object
+	 * @param key The routing key, compared using equals(). If null, this is the same as register(listener).
+	 * @return The registration, which can be used to unregister the listener quickly.
+	 * @see KeyedEvent
 	 */
-	public void register(EventListener listener) {
+	public Registration register(EventListener listener, Object key) {
 		if (listener == null) {
 			throw new NullPointerException("Listeners may not be null.");
 		}
 		
 		LinkedList<HandlerExecutor> handlers = getHandlers(listener);
+		for(HandlerExecutor h : handlers){
+			h.setKey(key);
+		}
 		if(handlers.isEmpty()){
 			System.out.println("<=== WARNING ===>");
 			System.out.println("Event listener: " + listener.getClass().getCanonicalName());
@@ -70,25 +398,42 @@ public class EventManager {
 			System.out.println("<=== WARNING ===>");
 		}
 		
-		for(HandlerExecutor h : handlers){
-			LinkedList<HandlerExecutor> list = listeners.get(h.getPriority());
-			if(list == null){
-				list = new LinkedList<HandlerExecutor>();
-				listeners.put(h.getPriority(), list);
-			}
-			list.add(h);
+		return registerHandlers(listener, handlers);
+	}
+	
+	/**
+	 * Registers the given handlers, which were built for the given listener
+	 * without using its @EventHandler methods.
+	 * @param listener The listener which the handlers call
+	 * @param handlers The handlers
+	 * @return The registration, which can be used to unregister the handlers quickly.
+	 */
+	Registration registerHandlers(EventListener listener, Collection<HandlerExecutor> handlers){
+		synchronized(writeLock){
+			registry = registry.register(handlers);
 		}
-		
+		return new Registration(this, listener, handlers.toArray(new HandlerExecutor[handlers.size()]));
 	}
 	
 	/**
 	 * Fetches all of the <br/>
-	 * <b>@ActionHandler</b><br/>methods from the given listener object
+	 * <b>@ActionHandler</b><br/>methods from the given listener object.
+	 * If the listener's class was compiled with the EventHandlerProcessor,
+	 * its generated dispatcher is used instead of reflection.
 	 * @param listener The listener to fetch handlers from
 	 * @return A linked list (Never null, possibly empty) of handlers.
 	 */
 	private LinkedList<HandlerExecutor> getHandlers(EventListener listener){
 		LinkedList<HandlerExecutor> actions = new LinkedList<HandlerExecutor>();
+		
+		ListenerDispatcher dispatcher = ListenerIndex.getDispatcher(listener.getClass());
+		if(dispatcher != null){
+			for(HandlerExecutor h : dispatcher.getHandlers(listener)){
+				actions.add(h);
+			}
+			return actions;
+		}
+		
 		for(Method m : listener.getClass().getMethods()){
 			if(isHandler(m) == false) {
 				continue;
@@ -107,12 +452,8 @@ public class EventManager {
 	 * @return true if the given method is an action handler method
 	 */
 	private static boolean isHandler(Method m){
-		if (m.getParameterTypes().length != 1) {
-			return false; // Wrong number of args
-		}
-		Class<?> clazz = m.getParameterTypes()[0];
-		if(isSuperClass(clazz, Event.class) == false){
-			return false;
+		if (HandlerExecutor.getEventType(m) == null) {
+			return false; // Wrong number of args, or doesn't accept an Event or List of Events
 		}
 		if (m.isAnnotationPresent(EventHandler.class) == false) {
 			return false; // There is no @ActionHandler annotation
@@ -124,23 +465,50 @@ public class EventManager {
 	}
 
 	/**
-	 * Unregisters the given listener
+	 * Unregisters the given listener. If you kept the Registration returned
+	 * when the listener was registered, Registration.unregister() is faster.
 	 * 
 	 * @param listener
 	 *            The listener
 	 * @return True if it was removed, false if it could not be found.
 	 */
 	public boolean unregister(EventListener listener) {
-		LinkedList<HandlerExecutor> handlers = getHandlers(listener);
-		for(HandlerExecutor h : handlers){
-			LinkedList<HandlerExecutor> list = listeners.get(h.getPriority());
-			if(list != null){
-				list.remove(h);
+		synchronized(writeLock){
+			ArrayList<HandlerExecutor> handlers = new ArrayList<HandlerExecutor>();
+			for(HandlerExecutor h : registry.getHandlers()){
+				if(h.getTarget() == listener || h.getTarget().equals(listener)){
+					handlers.add(h);
+				}
 			}
+			return unregister(handlers.toArray(new HandlerExecutor[handlers.size()]));
 		}
-		return false;
 	}
-
+	
+	/**
+	 * Unregisters the given handlers, which are compared by identity.
+	 * @param handlers The handlers
+	 * @return True if any were removed, false if none of them were registered.
+	 */
+	boolean unregister(HandlerExecutor[] handlers){
+		synchronized(writeLock){
+			HandlerRegistry next = registry.unregister(handlers);
+			if(next == registry){
+				return false;
+			}
+			registry = next;
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns true if the given handler is currently registered.
+	 * @param h The handler, compared by identity
+	 * @return true if the given handler is currently registered.
+	 */
+	boolean isRegistered(HandlerExecutor h){
+		return registry.contains(h);
+	}
+	
 	/**
 	 * Broadcasts the specified action to all listeners
 	 * @param event The action to broadcast.
@@ -150,43 +518,379 @@ public class EventManager {
 			throw new NullPointerException("Event may not be null!");
 		}
 		
-		for (EventPriority priority : EventPriority.values()) {
-			LinkedList<HandlerExecutor> list = listeners.get(priority);
-			if (list == null) {
+		HandlerRegistry registry = this.registry;
+		dispatch(registry, registry.getTable(event.getClass()), event);
+	}
+	
+	/**
+	 * Broadcasts the given pooled event to all listeners, and reports whether
+	 * any handlers were given the event on another thread without waiting for
+	 * them, since those may still be using it after this returns.
+	 * @param event The event to broadcast
+	 * @return true if handlers may still be using the event on another thread, and so it must not be reused.
+	 */
+	boolean callPooled(Event event){
+		HandlerRegistry registry = this.registry;
+		return dispatch(registry, registry.getTable(event.getClass()), event);
+	}
+	
+	/**
+	 * Broadcasts each of the given events, one event at a time.
+	 * @param events The events to broadcast
+	 * @see EventManager#callEvents(List, boolean)
+	 */
+	public void callEvents(List<? extends Event> events){
+		callEvents(events, false);
+	}
+	
+	/**
+	 * Broadcasts a batch of events. The events are grouped by class, and the
+	 * handlers for each class are only looked up once. Groups are dispatched in
+	 * the order their class first appears in the list, and events keep their
+	 * order within a group.<br/>
+	 * <br/>
+	 * If handlerMajor is false, each event is dispatched to all of its handlers
+	 * before the next event, as if callEvent() was called for each.<br/>
+	 * If handlerMajor is true, each handler receives every event in the group
+	 * before the next handler is called, which keeps the handler's code and data
+	 * hot. Batch handlers (Those which accept a List of events) are called once,
+	 * with every event in the group that they have not chosen to ignore. Groups
+	 * which have listeners registered with a routing key are always dispatched
+	 * one event at a time.
+	 * @param events The events to broadcast
+	 * @param handlerMajor true to call each handler with every event before moving on to the next handler
+	 */
+	public void callEvents(List<? extends Event> events, boolean handlerMajor){
+		if (events == null) {
+			throw new NullPointerException("Events may not be null!");
+		}
+		if(events.isEmpty()){
+			return;
+		}
+		
+		HandlerRegistry registry = this.registry;
+		Class<?> type = events.get(0).getClass();
+		boolean uniform = true;
+		for(int i = 1; i < events.size(); i++){
+			if(events.get(i).getClass() != type){
+				uniform = false;
+				break;
+			}
+		}
+		
+		if(uniform){
+			//Most batches are all the same type of event.
+			callGroup(registry, registry.getTable(type), events, handlerMajor);
+			return;
+		}
+		
+		LinkedHashMap<Class<?>, ArrayList<Event>> groups = new LinkedHashMap<Class<?>, ArrayList<Event>>();
+		for(Event e : events){
+			ArrayList<Event> group = groups.get(e.getClass());
+			if(group == null){
+				group = new ArrayList<Event>();
+				groups.put(e.getClass(), group);
+			}
+			group.add(e);
+		}
+		for(Map.Entry<Class<?>, ArrayList<Event>> e : groups.entrySet()){
+			callGroup(registry, registry.getTable(e.getKey()), e.getValue(), handlerMajor);
+		}
+	}
+	
+	/**
+	 * Broadcasts a group of events which all have the same class.
+	 * @param registry The registry the table came from
+	 * @param table The dispatch table for the class of the events
+	 * @param events The events
+	 * @param handlerMajor true to call each handler with every event before moving on to the next handler
+	 */
+	private void callGroup(HandlerRegistry registry, DispatchTable table, List<? extends Event> events, boolean handlerMajor){
+		if(table.isEmpty()){
+			return;
+		}
+		
+		if(handlerMajor == false || table.isKeyed()){
+			//Keyed events may each need a different table, so dispatch them one by one.
+			for(int i = 0; i < events.size(); i++){
+				dispatch(registry, table, events.get(i));
+			}
+			return;
+		}
+		
+		List<? extends Event> view = Collections.unmodifiableList(events);
+		for(HandlerExecutor h : table.handlers){
+			if(h.isBatch()){
+				List<? extends Event> accepted = getAccepted(h, view);
+				if(accepted.isEmpty() == false){
+					invoke(h, accepted);
+				}
 				continue;
 			}
 			
-			for(HandlerExecutor h : list){
-				if(h.getMethod().getParameterTypes()[0].isInstance(event) == false) {
+			for(int i = 0; i < events.size(); i++){
+				Event e = events.get(i);
+				if(isSkipped(h, e)){
 					continue;
 				}
-				
-				try{
-					h.getMethod().invoke(h.getTarget(), event);
+				invoke(h, e);
+			}
+		}
+		
+		if(table.deferred.length > 0){
+			for(int i = 0; i < events.size(); i++){
+				registry.getAsync().submit(events.get(i), table.deferred);
+			}
+		}
+	}
+	
+	/**
+	 * Fetches the events from the given list which the handler should be
+	 * called with, which are those that have not been cancelled (If the
+	 * handler ignores cancelled events).
+	 * @param h The handler
+	 * @param events The events
+	 * @return The given list if no events were skipped, otherwise a new list.
+	 */
+	private List<? extends Event> getAccepted(HandlerExecutor h, List<? extends Event> events){
+		ArrayList<Event> accepted = null;
+		for(int i = 0; i < events.size(); i++){
+			Event e = events.get(i);
+			if(isSkipped(h, e)){
+				if(accepted == null){
+					accepted = new ArrayList<Event>(events.subList(0, i));
 				}
-				catch(Throwable t){
-					t.printStackTrace();
+			}
+			else if(accepted != null){
+				accepted.add(e);
+			}
+		}
+		return accepted == null ? events : accepted;
+	}
+	
+	/**
+	 * Broadcasts the given event to the handlers in the given table.
+	 * @param registry The registry the table came from
+	 * @param table The dispatch table for the class of the event
+	 * @param event The event
+	 * @return true if handlers may still be using the event on another thread.
+	 */
+	private boolean dispatch(HandlerRegistry registry, DispatchTable table, Event event){
+		if(table.keyed != null && event instanceof KeyedEvent){
+			table = table.forKey(((KeyedEvent) event).getRoutingKey());
+		}
+		
+		HandlerExecutor[] handlers = table.handlers;
+		MonitorDispatcher monitors = registry.getMonitors();
+		//The MONITOR handlers are left to the MONITOR dispatcher, if there is one.
+		int end = monitors == null ? handlers.length : table.monitor;
+		if(event instanceof Cancellable){
+			Cancellable c = (Cancellable) event;
+			boolean stop = stopOnCancel;
+			for(int i = 0; i < end; i++){
+				HandlerExecutor h = handlers[i];
+				if(c.isCancelled()){
+					if(stop && i < table.monitor){
+						//Jump straight to the MONITOR handlers.
+						i = table.monitor - 1;
+						continue;
+					}
+					if(h.isIgnoreCancelled()){
+						continue;
+					}
 				}
+				invoke(h, event);
+			}
+		}
+		else{
+			for(int i = 0; i < end; i++){
+				invoke(handlers[i], event);
 			}
 		}
+		
+		boolean retained = false;
+		if(end < handlers.length){
+			monitors.dispatch(event, handlers, end);
+			retained = monitors.isWait() == false;
+		}
+		if(table.deferred.length > 0){
+			registry.getAsync().submit(event, table.deferred);
+			retained = true;
+		}
+		return retained;
+	}
+	
+	/**
+	 * Creates and broadcasts an event, but only if there is a handler which
+	 * would receive it. This is for events which are expensive to construct.
+	 * @param type The class of event that the supplier creates
+	 * @param supplier Creates the event. Not called if nobody is listening.
+	 * @return The event that was called, or null if nobody is listening.
+	 */
+	public <E extends Event> E callEvent(Class<E> type, Supplier<? extends E> supplier){
+		if(hasListeners(type) == false){
+			return null;
+		}
+		
+		E event = supplier.get();
+		callEvent(event);
+		return event;
+	}
+	
+	/**
+	 * Returns true if there is at least one handler which accepts the given
+	 * class of event. This is a single lookup in a table which is cached until
+	 * listeners are registered or unregistered, so callers may use it to avoid
+	 * building events which nobody is listening to.
+	 * @param type The concrete class of the event
+	 * @return true if there is at least one handler for the event.
+	 */
+	public boolean hasListeners(Class<? extends Event> type){
+		return registry.getTable(type).isEmpty() == false;
+	}
+	
+	/**
+	 * Calls a single batch handler with the given events. Anything thrown by
+	 * the handler is printed, and does not stop the events.
+	 * @param h The handler, which must be a batch handler
+	 * @param events The events
+	 */
+	void invoke(HandlerExecutor h, List<? extends Event> events){
+		ExecutionBudget budget = this.budget;
+		if(budget != null && h.getHealth().isQuarantined()){
+			return;
+		}
+		
+		boolean profile = profiling;
+		boolean timed = profile || budget != null;
+		long start = timed ? System.nanoTime() : 0;
+		boolean failed = false;
+		try{
+			h.getBatchInvoker().invoke(h.getTarget(), events);
+		}
+		catch(Throwable t){
+			t.printStackTrace();
+			failed = true;
+		}
+		if(timed){
+			long nanos = System.nanoTime() - start;
+			if(profile){
+				record(h, nanos);
+			}
+			if(budget != null){
+				charge(h, nanos, failed, budget);
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if the given handler should not be called with the given
+	 * event, because the event has been cancelled.
+	 * @param h The handler
+	 * @param event The event
+	 * @return true if the handler should be skipped.
+	 */
+	boolean isSkipped(HandlerExecutor h, Event event){
+		if(event instanceof Cancellable == false || ((Cancellable) event).isCancelled() == false){
+			return false;
+		}
+		if(h.isIgnoreCancelled()){
+			return true;
+		}
+		return stopOnCancel && h.getPriority() != EventPriority.MONITOR;
+	}
+	
+	/**
+	 * Calls a single handler with the given event. Anything thrown by
+	 * the handler is printed, and does not stop the event. Quarantined
+	 * handlers are skipped.
+	 * @param h The handler
+	 * @param event The event
+	 */
+	void invoke(HandlerExecutor h, Event event){
+		ExecutionBudget budget = this.budget;
+		if(budget != null && h.getHealth().isQuarantined()){
+			return;
+		}
+		
+		boolean profile = profiling;
+		boolean timed = profile || budget != null;
+		long start = timed ? System.nanoTime() : 0;
+		boolean failed = false;
+		try{
+			h.getInvoker().invoke(h.getTarget(), event);
+		}
+		catch(Throwable t){
+			t.printStackTrace();
+			failed = true;
+		}
+		if(timed){
+			long nanos = System.nanoTime() - start;
+			if(profile){
+				record(h, nanos);
+			}
+			if(budget != null){
+				charge(h, nanos, failed, budget);
+			}
+		}
+	}
+	
+	/**
+	 * Records the time taken by a single call to a handler, and reports
+	 * the handler the first time it goes over the slow threshold.
+	 * @param h The handler
+	 * @param nanos The time taken, in nanoseconds
+	 */
+	private void record(HandlerExecutor h, long nanos){
+		long threshold = slowThreshold;
+		if(h.getStats().record(nanos, threshold)){
+			System.out.println("Slow event handler: " + h.getName() + " took " 
+					+ (nanos / 1000000.0) + "ms (Threshold " + (threshold / 1000000.0) + "ms)");
+		}
+	}
+	
+	/**
+	 * Charges a single call to a handler against its budget, and reports
+	 * the handler if this puts it into quarantine.
+	 * @param h The handler
+	 * @param nanos The time taken, in nanoseconds
+	 * @param failed true if the handler threw
+	 * @param budget The budget
+	 */
+	private void charge(HandlerExecutor h, long nanos, boolean failed, ExecutionBudget budget){
+		String reason = h.getHealth().charge(nanos, failed, budget);
+		if(reason != null){
+			System.out.println("<=== WARNING ===>");
+			System.out.println("Event handler: " + h.getName());
+			System.out.println("Has been quarantined for " + (budget.getCooldownNanos() / 1000000.0) + "ms, because it " + reason + ".");
+			System.out.println("It will be skipped for all events until then.");
+			System.out.println("<=== WARNING ===>");
+		}
 	}
 	
 	/**
 	 * Debug tool, which returns all of the registered listeners in
-	 * a nicely formatted string.
+	 * a nicely formatted string. Handlers which have been profiled
+	 * are followed by their timing statistics, and handlers which have
+	 * been quarantined are followed by their quarantine state.
 	 * @return The debug info
 	 */
 	public String describe(){
 		StringBuilder sb = new StringBuilder();
 		
+		HandlerExecutor[] handlers = registry.getHandlers();
 		for(EventPriority p : EventPriority.values()){
 			sb.append("<=== " + p.toString() + " ===>\n");
-			LinkedList<HandlerExecutor> list = listeners.get(p);
-			if(list == null) {
-				continue;
-			}
-			for(HandlerExecutor h : list){
-				sb.append("---> " + h.getMethod().toGenericString() + "\n");
+			for(HandlerExecutor h : handlers){
+				if(h.getPriority() == p){
+					sb.append("---> " + h.getName() + "\n");
+					if(h.getStats().getCount() > 0){
+						sb.append("     " + (h.getStats().isSlow() ? "[SLOW] " : "") + h.getStats() + "\n");
+					}
+					if(h.getHealth().getQuarantines() > 0){
+						sb.append("     " + (h.getHealth().isQuarantined() ? "[QUARANTINED] " : "") + h.getHealth() + "\n");
+					}
+				}
 			}
 		}
 		
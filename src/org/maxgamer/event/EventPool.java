@@ -0,0 +1,158 @@
+package org.maxgamer.event;
+
+import java.util.function.Supplier;
+
+/**
+ * A per-thread pool of reusable events of one class. Each thread borrows and
+ * returns events from its own pool, so no locking is needed, and once the pool
+ * has warmed up no events are allocated:<pre>
+ * MoveEvent e = pool.borrow();
+ * e.setEntity(entity);
+ * pool.call(e); //Calls the event, then returns it to the pool
+ * </pre>
+ * Events which were handed to async handlers (Or to MONITOR handlers which the
+ * caller does not wait for) are not returned to the pool, as those handlers may
+ * still be using them.
+ * 
+ * In debug mode, released events are never reused. Instead they are marked so
+ * that PooledEvent.checkValid() fails, which catches handlers that keep
+ * references to pooled events. Debug mode allocates for every borrow, and so
+ * should not be used in production.
+ * @author netherfoam
+ */
+public class EventPool<E extends PooledEvent> {
+	/** The manager to call events through */
+	private EventManager manager;
+	/** Creates new events when a thread's pool is empty */
+	private Supplier<? extends E> factory;
+	/** The maximum number of idle events kept by each thread */
+	private int capacity;
+	/** True if released events should be poisoned instead of reused */
+	private volatile boolean debug;
+	/** The idle events for each thread */
+	private ThreadLocal<Stack> stacks = new ThreadLocal<Stack>(){
+		@Override
+		protected Stack initialValue(){
+			return new Stack(capacity);
+		}
+	};
+	
+	/**
+	 * Constructs a new EventPool.
+	 * @param manager The manager to call events through
+	 * @param factory Creates new events when a thread's pool is empty
+	 * @param capacity The maximum number of idle events kept by each thread
+	 */
+	public EventPool(EventManager manager, Supplier<? extends E> factory, int capacity){
+		if(manager == null){
+			throw new NullPointerException("Manager may not be null.");
+		}
+		if(factory == null){
+			throw new NullPointerException("Factory may not be null.");
+		}
+		if(capacity <= 0){
+			throw new IllegalArgumentException("Capacity must be positive!");
+		}
+		
+		this.manager = manager;
+		this.factory = factory;
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Sets whether this pool is in debug mode. In debug mode, events are never
+	 * reused and using a released event throws an exception.
+	 * @param debug true to enable debug mode
+	 */
+	public void setDebug(boolean debug){
+		this.debug = debug;
+	}
+	
+	/**
+	 * Returns true if this pool is in debug mode.
+	 * @return true if this pool is in debug mode.
+	 */
+	public boolean isDebug(){
+		return debug;
+	}
+	
+	/**
+	 * Takes an event from this thread's pool, or creates one if the pool is empty.
+	 * The event's fields have been reset.
+	 * @return The event
+	 */
+	public E borrow(){
+		if(debug){
+			return factory.get();
+		}
+		
+		E event = stacks.get().pop();
+		return event == null ? factory.get() : event;
+	}
+	
+	/**
+	 * Resets the given event and returns it to this thread's pool. The event
+	 * must not be used by the caller afterwards.
+	 * @param event The event, which should have been borrowed from this pool
+	 */
+	public void release(E event){
+		event.reset();
+		if(debug){
+			event.poison(new Throwable("Released here"));
+			return;
+		}
+		stacks.get().push(event);
+	}
+	
+	/**
+	 * Calls the given event through the EventManager and then releases it.
+	 * @param event The event, which should have been borrowed from this pool
+	 */
+	public void call(E event){
+		if(debug && event.isReleased()){
+			throw new IllegalStateException("Pooled event " + event.getClass().getName() + " was called after it was released.");
+		}
+		
+		if(manager.callPooled(event)){
+			//Async handlers may still be using the event, so we can't reuse it.
+			return;
+		}
+		release(event);
+	}
+	
+	/**
+	 * The number of idle events in the current thread's pool.
+	 * @return The number of idle events in the current thread's pool.
+	 */
+	public int getIdle(){
+		return stacks.get().size;
+	}
+	
+	/**
+	 * A fixed capacity stack of idle events, used by one thread.
+	 */
+	private class Stack{
+		private E[] events;
+		private int size;
+		
+		@SuppressWarnings("unchecked")
+		public Stack(int capacity){
+			this.events = (E[]) new PooledEvent[capacity];
+		}
+		
+		public E pop(){
+			if(size == 0){
+				return null;
+			}
+			E event = events[--size];
+			events[size] = null;
+			return event;
+		}
+		
+		public void push(E event){
+			if(size < events.length){
+				events[size++] = event;
+			}
+		}
+	}
+}
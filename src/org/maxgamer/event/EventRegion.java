@@ -0,0 +1,136 @@
+package org.maxgamer.event;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One region of a ShardedEventBus. Each region is processed by a single worker
+ * thread, which binds itself to the region and then drains the region's queue
+ * regularly (Eg. once per tick). Events posted by the worker thread to its own
+ * region are called straight away, without going through the queue.
+ * @author netherfoam
+ * @see ShardedEventBus
+ */
+public class EventRegion {
+	/** The region which the current thread is bound to */
+	private static final ThreadLocal<EventRegion> CURRENT = new ThreadLocal<EventRegion>();
+	
+	/** The manager to call events through */
+	private EventManager manager;
+	/** The id of this region */
+	private int id;
+	/** Events posted by other threads, waiting to be called */
+	private ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<Event>();
+	/** The worker thread for this region, or null if none is bound */
+	private final AtomicReference<Thread> owner = new AtomicReference<Thread>();
+	
+	/**
+	 * Constructs a new EventRegion.
+	 * @param manager The manager to call events through
+	 * @param id The id of this region
+	 */
+	EventRegion(EventManager manager, int id){
+		this.manager = manager;
+		this.id = id;
+	}
+	
+	/**
+	 * The region which the current thread is bound to.
+	 * @return The region, or null if the current thread is not a region's worker.
+	 */
+	public static EventRegion current(){
+		return CURRENT.get();
+	}
+	
+	/**
+	 * The id of this region
+	 * @return The id of this region
+	 */
+	public int getId(){
+		return id;
+	}
+	
+	/**
+	 * Makes the current thread the worker for this region. Only the worker
+	 * thread should call drain(). A thread may only be bound to one region.
+	 * @throws IllegalStateException If this region or the current thread is already bound.
+	 */
+	public void bind(){
+		if(CURRENT.get() != null){
+			throw new IllegalStateException("Thread " + Thread.currentThread().getName() + " is already bound to region " + CURRENT.get().getId());
+		}
+		if(owner.compareAndSet(null, Thread.currentThread()) == false){
+			Thread other = owner.get();
+			throw new IllegalStateException("Region " + id + " is already bound to " + (other == null ? "another thread" : other.getName()));
+		}
+		CURRENT.set(this);
+	}
+	
+	/**
+	 * Unbinds the current thread from this region. Events posted afterwards
+	 * are queued until a worker drains them.
+	 * @throws IllegalStateException If the current thread is not bound to this region.
+	 */
+	public void unbind(){
+		if(owner.compareAndSet(Thread.currentThread(), null) == false){
+			throw new IllegalStateException("Region " + id + " is not bound to the current thread.");
+		}
+		CURRENT.remove();
+	}
+	
+	/**
+	 * The worker thread for this region
+	 * @return The worker thread, or null if none is bound.
+	 */
+	public Thread getOwner(){
+		return owner.get();
+	}
+	
+	/**
+	 * Posts the given event to this region. If the current thread is this
+	 * region's worker, the event is called now. Otherwise it is queued until
+	 * the worker next drains this region.
+	 * @param event The event
+	 */
+	public void post(Event event){
+		if(owner.get() == Thread.currentThread()){
+			manager.callEvent(event);
+			return;
+		}
+		queue.add(event);
+	}
+	
+	/**
+	 * Calls every queued event through the EventManager, in the order they were
+	 * posted. This should only be called by the worker thread.
+	 * @return The number of events called
+	 */
+	public int drain(){
+		return drain(Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Calls up to max queued events through the EventManager, in the order
+	 * they were posted. This should only be called by the worker thread.
+	 * @param max The maximum number of events to call
+	 * @return The number of events called
+	 */
+	public int drain(int max){
+		int count = 0;
+		Event event;
+		while(count < max && (event = queue.poll()) != null){
+			manager.callEvent(event);
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * The number of events waiting to be called. This walks the queue, so it
+	 * should only be used for monitoring.
+	 * @return The number of events waiting to be called
+	 */
+	public int getBacklog(){
+		return queue.size();
+	}
+}
@@ -0,0 +1,194 @@
+package org.maxgamer.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * A fixed size queue of preallocated events, which lets any number of threads
+ * hand events to a single consumer thread (Such as the game thread) without
+ * locking or allocating. The consumer calls each event through the EventManager.
+ * 
+ * A producer claims a slot, fills in the event in that slot, and publishes it:<pre>
+ * long seq = ring.next();
+ * try{
+ *    MoveEvent e = ring.get(seq);
+ *    e.setEntity(entity);
+ * }
+ * finally{
+ *    ring.publish(seq);
+ * }</pre>
+ * The consumer then calls drain() regularly, or waitAndDrain() to block until
+ * there is something to do.
+ * 
+ * Each slot is reused once the consumer has called its event, so handlers must
+ * not keep a reference to the event. This also means events from a ring buffer
+ * should not have async handlers, since those run after the slot may have been reused.
+ * @author netherfoam
+ */
+public class EventRingBuffer<E extends Event> {
+	/** The manager to call events through */
+	private EventManager manager;
+	/** The preallocated events */
+	private E[] slots;
+	/** slots.length - 1, used instead of the modulus operator since the length is a power of 2 */
+	private int mask;
+	/** How producers wait for space, and the consumer waits for events */
+	private WaitStrategy wait;
+	
+	/** The last sequence number claimed by a producer */
+	private AtomicLong claimed = new AtomicLong(-1);
+	/** The last sequence number the consumer has finished calling */
+	private AtomicLong consumed = new AtomicLong(-1);
+	/** The sequence number which was last published in each slot */
+	private AtomicLongArray published;
+	
+	/**
+	 * Constructs a new EventRingBuffer.
+	 * @param manager The manager to call events through
+	 * @param size The number of slots, which must be a power of 2
+	 * @param factory Creates the event for each slot. Called size times, now.
+	 * @param wait How producers wait for space, and the consumer waits for events
+	 */
+	@SuppressWarnings("unchecked")
+	public EventRingBuffer(EventManager manager, int size, Supplier<? extends E> factory, WaitStrategy wait){
+		if(manager == null){
+			throw new NullPointerException("Manager may not be null.");
+		}
+		if(wait == null){
+			throw new NullPointerException("Wait strategy may not be null.");
+		}
+		if(size <= 0 || (size & -size) != size){
+			throw new IllegalArgumentException("Size should be a power of 2!");
+		}
+		
+		this.manager = manager;
+		this.wait = wait;
+		this.mask = size - 1;
+		this.slots = (E[]) new Event[size];
+		this.published = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++){
+			slots[i] = factory.get();
+			published.set(i, -1);
+		}
+	}
+	
+	/**
+	 * The number of slots in this buffer
+	 * @return The number of slots in this buffer
+	 */
+	public int getSize(){
+		return slots.length;
+	}
+	
+	/**
+	 * The number of events which have been claimed but not yet called by the consumer.
+	 * @return The number of events which are waiting
+	 */
+	public int getBacklog(){
+		return (int) (claimed.get() - consumed.get());
+	}
+	
+	/**
+	 * Claims the next slot, waiting until the consumer has freed one if the
+	 * buffer is full. The slot must always be published afterwards, even if
+	 * filling it in fails, or the consumer will never get past it.
+	 * @return The sequence number of the slot
+	 */
+	public long next(){
+		long seq = claimed.incrementAndGet();
+		long wrap = seq - slots.length;
+		
+		int counter = 0;
+		while(wrap > consumed.get()){
+			wait.idle(++counter);
+		}
+		return seq;
+	}
+	
+	/**
+	 * Claims the next slot, if the buffer is not full.
+	 * @return The sequence number of the slot, or -1 if the buffer is full.
+	 */
+	public long tryNext(){
+		while(true){
+			long current = claimed.get();
+			long seq = current + 1;
+			if(seq - slots.length > consumed.get()){
+				return -1;
+			}
+			if(claimed.compareAndSet(current, seq)){
+				return seq;
+			}
+		}
+	}
+	
+	/**
+	 * Fetches the event in the given slot, to be filled in by the producer which claimed it.
+	 * @param seq The sequence number returned by next()
+	 * @return The event in the slot
+	 */
+	public E get(long seq){
+		return slots[(int) seq & mask];
+	}
+	
+	/**
+	 * Publishes the given slot, making its event visible to the consumer.
+	 * @param seq The sequence number returned by next()
+	 */
+	public void publish(long seq){
+		//Ordered write, so the consumer sees the event's fields before it sees this.
+		published.lazySet((int) seq & mask, seq);
+	}
+	
+	/**
+	 * Calls all of the published events, in order, through the EventManager.
+	 * This must only be called by one thread at a time.
+	 * @return The number of events called
+	 */
+	public int drain(){
+		return drain(Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Calls up to max published events, in order, through the EventManager.
+	 * Stops early at the first slot which has been claimed but not yet published.
+	 * This must only be called by one thread at a time.
+	 * @param max The maximum number of events to call
+	 * @return The number of events called
+	 */
+	public int drain(int max){
+		long seq = consumed.get() + 1;
+		int count = 0;
+		while(count < max){
+			int index = (int) seq & mask;
+			if(published.get(index) != seq){
+				break;
+			}
+			
+			manager.callEvent(slots[index]);
+			//Frees the slot for producers.
+			consumed.lazySet(seq);
+			seq++;
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Waits, using the wait strategy, until at least one event is published,
+	 * then calls up to max published events.
+	 * This must only be called by one thread at a time.
+	 * @param max The maximum number of events to call
+	 * @return The number of events called, at least 1
+	 */
+	public int waitAndDrain(int max){
+		long seq = consumed.get() + 1;
+		int index = (int) seq & mask;
+		int counter = 0;
+		while(published.get(index) != seq){
+			wait.idle(++counter);
+		}
+		return drain(max);
+	}
+}
@@ -0,0 +1,78 @@
+package org.maxgamer.event;
+
+/**
+ * Limits how much time each handler may spend, and how many times it may
+ * throw, within a sliding window. A handler which goes over either limit is
+ * quarantined: the EventManager skips it until the cooldown has passed.
+ * This protects the tick loop from listeners which are broken or far too slow,
+ * such as those in scripts.
+ * 
+ * Budgets are immutable, and are set with EventManager.setBudget().
+ * @author netherfoam
+ */
+public class ExecutionBudget {
+	/** The maximum time a handler may spend in each window, in nanoseconds, or 0 for no limit */
+	private long maxNanos;
+	/** The maximum number of times a handler may throw in each window, or 0 for no limit */
+	private int maxFailures;
+	/** The length of the window, in nanoseconds */
+	private long windowNanos;
+	/** How long a handler is quarantined for, in nanoseconds */
+	private long cooldownNanos;
+	
+	/**
+	 * Constructs a new ExecutionBudget.
+	 * @param maxNanos The maximum time a handler may spend in each window, in nanoseconds, or 0 for no limit
+	 * @param maxFailures The maximum number of times a handler may throw in each window, or 0 for no limit
+	 * @param windowNanos The length of the sliding window, in nanoseconds
+	 * @param cooldownNanos How long a handler is skipped for once it goes over budget, in nanoseconds
+	 */
+	public ExecutionBudget(long maxNanos, int maxFailures, long windowNanos, long cooldownNanos){
+		if(maxNanos < 0 || maxFailures < 0){
+			throw new IllegalArgumentException("Limits may not be negative!");
+		}
+		if(windowNanos <= 0){
+			throw new IllegalArgumentException("Window must be positive!");
+		}
+		if(cooldownNanos < 0){
+			throw new IllegalArgumentException("Cooldown may not be negative!");
+		}
+		
+		this.maxNanos = maxNanos;
+		this.maxFailures = maxFailures;
+		this.windowNanos = windowNanos;
+		this.cooldownNanos = cooldownNanos;
+	}
+	
+	/**
+	 * The maximum time a handler may spend in each window
+	 * @return The time in nanoseconds, or 0 for no limit
+	 */
+	public long getMaxNanos(){
+		return maxNanos;
+	}
+	
+	/**
+	 * The maximum number of times a handler may throw in each window
+	 * @return The number of failures, or 0 for no limit
+	 */
+	public int getMaxFailures(){
+		return maxFailures;
+	}
+	
+	/**
+	 * The length of the sliding window
+	 * @return The length in nanoseconds
+	 */
+	public long getWindowNanos(){
+		return windowNanos;
+	}
+	
+	/**
+	 * How long a handler is skipped for once it goes over budget
+	 * @return The cooldown in nanoseconds
+	 */
+	public long getCooldownNanos(){
+		return cooldownNanos;
+	}
+}
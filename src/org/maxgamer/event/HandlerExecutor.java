@@ -1,12 +1,37 @@
 package org.maxgamer.event;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.Collections;
+import java.util.List;
 
 public class HandlerExecutor{
-	/** The method to execute */
+	/** The method to execute, null if this was created by a generated ListenerDispatcher */
 	private Method method;
+	/** The signature of the method, used for debugging */
+	private String name;
 	/** The listener to call the method on */
 	private EventListener target;
+	/** The type of event the method accepts, cached from the method's parameters */
+	private Class<?> eventType;
+	/** The priority of the method, cached from the @EventHandler annotation */
+	private EventPriority priority;
+	/** True if the method may be called after the event, on another thread */
+	private boolean async;
+	/** True if the method should not be called for cancelled events */
+	private boolean ignoreCancelled;
+	/** Calls the method, created once so that events are not dispatched through reflection */
+	private HandlerInvoker invoker;
+	/** Calls the method with a list of events, or null if the method accepts a single event */
+	private BatchInvoker batchInvoker;
+	/** Only events with this routing key are passed to the method, or null for all events */
+	private Object key;
+	/** Timing statistics, recorded while the EventManager is profiling */
+	private HandlerStats stats = new HandlerStats();
+	/** Usage of the execution budget, updated while the EventManager has a budget */
+	private HandlerHealth health = new HandlerHealth();
 	/**
 	 * Represents a new HandlerExecutor, which is an individual 'listener'
 	 * method that can be registered
@@ -22,14 +47,197 @@ public class HandlerExecutor{
 		}
 		this.method = method;
 		this.target = target;
+		this.name = method.toGenericString();
+		this.eventType = getEventType(method);
+		if(eventType == null){
+			throw new IllegalArgumentException("Method must accept a single Event or List of Events: " + method.toGenericString());
+		}
+		
+		EventHandler meta = method.getAnnotation(EventHandler.class);
+		this.priority = meta == null ? EventPriority.NORMAL : meta.priority();
+		this.async = meta != null && meta.async();
+		this.ignoreCancelled = meta != null && meta.ignoreCancelled();
+		
+		if(method.getParameterTypes()[0] == List.class){
+			this.batchInvoker = InvokerFactory.createBatch(method);
+			this.invoker = toSingle(batchInvoker);
+		}
+		else{
+			this.invoker = InvokerFactory.create(method);
+		}
+	}
+	/**
+	 * Represents a new HandlerExecutor for a method which accepts a single event,
+	 * with an invoker which calls the method directly. This is used by the
+	 * ListenerDispatcher classes generated by the EventHandlerProcessor, so that
+	 * no reflection is needed to register the listener.
+	 * @param target The target listener
+	 * @param eventType The type of event the method accepts
+	 * @param priority The priority from the method's @EventHandler annotation
+	 * @param async The async value from the method's @EventHandler annotation
+	 * @param ignoreCancelled The ignoreCancelled value from the method's @EventHandler annotation
+	 * @param name The signature of the method, used for debugging
+	 * @param invoker Calls the method
+	 */
+	public HandlerExecutor(EventListener target, Class<?> eventType, EventPriority priority, boolean async, boolean ignoreCancelled, String name, HandlerInvoker invoker){
+		if(target == null){
+			throw new NullPointerException("Listener may not be null.");
+		}
+		if(invoker == null){
+			throw new NullPointerException("Invoker may not be null.");
+		}
+		this.target = target;
+		this.eventType = eventType;
+		this.priority = priority;
+		this.async = async;
+		this.ignoreCancelled = ignoreCancelled;
+		this.name = name;
+		this.invoker = invoker;
+	}
+	/**
+	 * Represents a new HandlerExecutor for a method which accepts a List of events,
+	 * with an invoker which calls the method directly.
+	 * @param target The target listener
+	 * @param eventType The type of event in the List the method accepts
+	 * @param priority The priority from the method's @EventHandler annotation
+	 * @param async The async value from the method's @EventHandler annotation
+	 * @param ignoreCancelled The ignoreCancelled value from the method's @EventHandler annotation
+	 * @param name The signature of the method, used for debugging
+	 * @param invoker Calls the method
+	 * @see HandlerExecutor#HandlerExecutor(EventListener, Class, EventPriority, boolean, boolean, String, HandlerInvoker)
+	 */
+	public HandlerExecutor(EventListener target, Class<?> eventType, EventPriority priority, boolean async, boolean ignoreCancelled, String name, BatchInvoker invoker){
+		this(target, eventType, priority, async, ignoreCancelled, name, toSingle(invoker));
+		this.batchInvoker = invoker;
+	}
+	/**
+	 * Wraps the given batch invoker so that it can be called with single events.
+	 * @param batch The batch invoker
+	 * @return An invoker which passes a List of one event to the batch invoker.
+	 */
+	private static HandlerInvoker toSingle(final BatchInvoker batch){
+		if(batch == null){
+			throw new NullPointerException("Invoker may not be null.");
+		}
+		return new HandlerInvoker(){
+			@Override
+			public void invoke(Object target, Event event) throws Throwable{
+				batch.invoke(target, Collections.singletonList(event));
+			}
+		};
+	}
+	/**
+	 * Finds the type of event that the given method accepts. This is the type
+	 * of its only parameter, or the element type if the parameter is a List.
+	 * The type may be an Event class, or an interface such as Cancellable, in
+	 * which case the method accepts every event which implements it.
+	 * @param method The method
+	 * @return The type of event, or null if the method does not accept events.
+	 */
+	public static Class<?> getEventType(Method method){
+		Class<?>[] params = method.getParameterTypes();
+		if(params.length != 1){
+			return null;
+		}
+		
+		if(params[0] == List.class){
+			//A batch handler, eg. void on(List<MoveEvent> events)
+			Type generic = method.getGenericParameterTypes()[0];
+			if(generic instanceof ParameterizedType == false){
+				return null;
+			}
+			Type element = ((ParameterizedType) generic).getActualTypeArguments()[0];
+			if(element instanceof WildcardType){
+				element = ((WildcardType) element).getUpperBounds()[0];
+			}
+			if(element instanceof Class<?> && isEventType((Class<?>) element)){
+				return (Class<?>) element;
+			}
+			return null;
+		}
+		
+		if(isEventType(params[0])){
+			return params[0];
+		}
+		return null;
+	}
+	/**
+	 * Returns true if handlers may subscribe to the given type, which must be
+	 * an Event class or an interface marked with @EventInterface.
+	 * @param type The type
+	 * @return true if handlers may subscribe to the given type.
+	 */
+	private static boolean isEventType(Class<?> type){
+		return Event.class.isAssignableFrom(type) || (type.isInterface() && type.isAnnotationPresent(EventInterface.class));
 	}
 	/**
 	 * The method to be executed.
-	 * @return The method to be executed.
+	 * @return The method to be executed, or null if this executor was created by a generated ListenerDispatcher.
 	 */
 	public Method getMethod(){
 		return method;
 	}
+	/**
+	 * The signature of the method to be executed, for debugging.
+	 * @return The signature of the method to be executed.
+	 */
+	public String getName(){
+		return name;
+	}
+	/**
+	 * The invoker which calls the method. This should be used instead of
+	 * getMethod().invoke(), as it avoids reflection where possible.
+	 * @return The invoker for the method.
+	 */
+	public HandlerInvoker getInvoker(){
+		return invoker;
+	}
+	/**
+	 * The invoker which calls the method with a list of events.
+	 * @return The invoker, or null if this is not a batch handler.
+	 */
+	public BatchInvoker getBatchInvoker(){
+		return batchInvoker;
+	}
+	/**
+	 * Returns true if the method accepts a List of events rather than a single
+	 * event. When events are called one at a time, the list has one element.
+	 * @return true if the method accepts a List of events.
+	 */
+	public boolean isBatch(){
+		return batchInvoker != null;
+	}
+	/**
+	 * The routing key this executor was registered with. If not null, only
+	 * KeyedEvents with an equal routing key are passed to the method.
+	 * @return The routing key, or null if the executor receives all events.
+	 */
+	public Object getKey(){
+		return key;
+	}
+	/**
+	 * Sets the routing key. This must be done before the executor is registered.
+	 * @param key The routing key, or null to receive all events.
+	 */
+	void setKey(Object key){
+		this.key = key;
+	}
+	/**
+	 * The timing statistics for this executor. These are only recorded
+	 * while the EventManager is profiling.
+	 * @return The timing statistics for this executor.
+	 */
+	public HandlerStats getStats(){
+		return stats;
+	}
+	/**
+	 * The budget usage and quarantine state for this executor. These are only
+	 * updated while the EventManager has an execution budget.
+	 * @return The health of this executor.
+	 */
+	public HandlerHealth getHealth(){
+		return health;
+	}
 	/**
 	 * The listener to have the method executed on
 	 * @return The listener to have the method executed on
@@ -37,14 +245,38 @@ public class HandlerExecutor{
 	public EventListener getTarget(){
 		return target;
 	}
+	/**
+	 * The type of event this executor accepts. Any event which is an
+	 * instance of this class will be passed to the method.
+	 * @return The type of event this executor accepts.
+	 */
+	public Class<?> getEventType(){
+		return eventType;
+	}
 	/**
 	 * The priority for this executor. This is found using the 
 	 * @ActionHandler annotation on the method.
 	 * @return The priority for this executor.
 	 */
 	public EventPriority getPriority(){
-		EventHandler meta = getMethod().getAnnotation(EventHandler.class);
-		return meta.priority();
+		return priority;
+	}
+	/**
+	 * Returns true if this executor is fire-and-forget, and may be called
+	 * on the EventManager's async executor after the event has been called.
+	 * This is found using the @EventHandler annotation on the method.
+	 * @return true if this executor is fire-and-forget.
+	 */
+	public boolean isAsync(){
+		return async || priority == EventPriority.MONITOR;
+	}
+	/**
+	 * Returns true if this executor should be skipped for events which have
+	 * been cancelled. This is found using the @EventHandler annotation on the method.
+	 * @return true if this executor should be skipped for cancelled events.
+	 */
+	public boolean isIgnoreCancelled(){
+		return ignoreCancelled;
 	}
 	@Override
 	public boolean equals(Object o){
@@ -55,12 +287,16 @@ public class HandlerExecutor{
 			return false;
 		}
 		HandlerExecutor h = (HandlerExecutor) o;
-		if(h.method == method && h.target == target){
-			return true;
+		if(h.target != target && h.target.equals(target) == false){
+			return false;
 		}
-		else if(h.method.equals(method) && h.target.equals(target)){
-			return true;
+		if(h.method != null && method != null){
+			return h.method.equals(method);
 		}
-		return false;
+		return h.name.equals(name);
+	}
+	@Override
+	public int hashCode(){
+		return target.hashCode() * 31 + name.hashCode();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,140 @@
+package org.maxgamer.event;
+
+/**
+ * Tracks a single HandlerExecutor's use of its ExecutionBudget, and whether it
+ * is quarantined. This is only updated while the EventManager has a budget.
+ * 
+ * The sliding window is approximated with two fixed windows: the usage of the
+ * previous window is weighted by how much of it still overlaps the sliding
+ * window, and added to the usage of the current window.
+ * @author netherfoam
+ */
+public class HandlerHealth {
+	/** The time the current window started, in System.nanoTime() */
+	private long windowStart = System.nanoTime();
+	/** The time spent in the handler in the current window */
+	private long time;
+	/** The number of failures in the current window */
+	private int failures;
+	/** The time spent in the handler in the previous window */
+	private long previousTime;
+	/** The number of failures in the previous window */
+	private int previousFailures;
+	
+	/** The System.nanoTime() the last quarantine ends (Which may have passed), or 0 if there is none */
+	private volatile long quarantinedUntil;
+	/** Why the handler was last quarantined, or null if it never has been */
+	private volatile String reason;
+	/** The number of times the handler has been quarantined */
+	private volatile int quarantines;
+	
+	/**
+	 * Returns true if the handler should currently be skipped. The quarantine
+	 * ends by itself once the cooldown has passed. This only reads the end
+	 * time, and leaves an expired one in place, so it can't race with charge()
+	 * starting a new quarantine.
+	 * @return true if the handler is quarantined.
+	 */
+	public boolean isQuarantined(){
+		long until = quarantinedUntil;
+		return until != 0 && System.nanoTime() - until < 0;
+	}
+	
+	/**
+	 * Records a call to the handler, and quarantines it if it has gone over budget.
+	 * @param nanos The time the call took, in nanoseconds
+	 * @param failed true if the call threw
+	 * @param budget The budget of the EventManager
+	 * @return The reason the handler was quarantined, or null if it is within budget.
+	 */
+	public synchronized String charge(long nanos, boolean failed, ExecutionBudget budget){
+		long now = System.nanoTime();
+		long window = budget.getWindowNanos();
+		long elapsed = now - windowStart;
+		if(elapsed >= window){
+			//Move on to a new window. If a whole window has passed, the previous one was empty.
+			boolean adjacent = elapsed < 2 * window;
+			previousTime = adjacent ? time : 0;
+			previousFailures = adjacent ? failures : 0;
+			time = 0;
+			failures = 0;
+			windowStart = adjacent ? windowStart + window : now;
+			elapsed = now - windowStart;
+		}
+		
+		time += nanos;
+		if(failed){
+			failures++;
+		}
+		
+		double overlap = (window - elapsed) / (double) window;
+		long usedTime = time + (long) (previousTime * overlap);
+		long usedFailures = failures + (long) (previousFailures * overlap);
+		
+		String why = null;
+		if(budget.getMaxNanos() > 0 && usedTime > budget.getMaxNanos()){
+			why = "spent " + (usedTime / 1000000.0) + "ms (Budget " + (budget.getMaxNanos() / 1000000.0) + "ms per " + (window / 1000000.0) + "ms)";
+		}
+		else if(budget.getMaxFailures() > 0 && usedFailures > budget.getMaxFailures()){
+			why = "threw " + usedFailures + " times (Budget " + budget.getMaxFailures() + " per " + (window / 1000000.0) + "ms)";
+		}
+		
+		if(why != null){
+			//Start afresh once the quarantine is over.
+			time = 0;
+			failures = 0;
+			previousTime = 0;
+			previousFailures = 0;
+			windowStart = now;
+			
+			reason = why;
+			quarantines++;
+			//0 means not quarantined, so avoid it if the clock happens to land there.
+			long until = now + budget.getCooldownNanos();
+			quarantinedUntil = until == 0 ? 1 : until;
+		}
+		return why;
+	}
+	
+	/**
+	 * Ends the quarantine of the handler now, if it is quarantined.
+	 */
+	public void release(){
+		quarantinedUntil = 0;
+	}
+	
+	/**
+	 * The time left before the handler is let out of quarantine.
+	 * @return The time in nanoseconds, or 0 if the handler is not quarantined.
+	 */
+	public long getRemainingNanos(){
+		long until = quarantinedUntil;
+		if(until == 0){
+			return 0;
+		}
+		return Math.max(0, until - System.nanoTime());
+	}
+	
+	/**
+	 * Why the handler was last quarantined.
+	 * @return The reason, or null if the handler has never been quarantined.
+	 */
+	public String getReason(){
+		return reason;
+	}
+	
+	/**
+	 * The number of times the handler has been quarantined.
+	 * @return The number of times the handler has been quarantined.
+	 */
+	public int getQuarantines(){
+		return quarantines;
+	}
+	
+	@Override
+	public String toString(){
+		long remaining = getRemainingNanos();
+		return (remaining > 0 ? "quarantined for " + (remaining / 1000000) + "ms, " : "") 
+				+ "quarantines=" + quarantines + (reason == null ? "" : ", last: " + reason);
+	}
+}
@@ -0,0 +1,17 @@
+package org.maxgamer.event;
+
+/**
+ * Calls a single @EventHandler method on a listener. An invoker is created
+ * once, when the handler is registered, so that calling an event does not
+ * need to go through reflection for each handler.
+ * @author netherfoam
+ */
+public interface HandlerInvoker {
+	/**
+	 * Calls the handler method on the given target with the given event.
+	 * @param target The listener which owns the method
+	 * @param event The event to pass to the method
+	 * @throws Throwable Anything thrown by the handler method itself.
+	 */
+	public void invoke(Object target, Event event) throws Throwable;
+}
@@ -0,0 +1,622 @@
+package org.maxgamer.event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.maxgamer.structure.HashTrie;
+
+/**
+ * An immutable snapshot of every handler registered with an EventManager.
+ * Registering or unregistering creates a new snapshot (Copy on write), which
+ * the EventManager publishes through a single volatile field. This means
+ * threads calling events never need to lock, and never see a half-updated
+ * set of handlers.
+ * 
+ * The dispatch table for each event class is built the first time that class
+ * is called. Tables which were built for the previous snapshot are carried
+ * over when a new snapshot is created, so that registering a listener does
+ * not make the next call of each event rebuild its table.
+ * 
+ * Keyed handlers are kept per key in a HashTrie, and each table keeps its
+ * sub-tables in one too. Registering or unregistering a keyed listener only
+ * copies that key's handlers and sub-tables, plus a few small trie nodes.
+ * @author netherfoam
+ */
+public class HandlerRegistry {
+	/** Shared array for event classes which nobody is listening to */
+	static final HandlerExecutor[] NO_HANDLERS = new HandlerExecutor[0];
+	/** Shared table for event classes which nobody is listening to */
+	static final DispatchTable EMPTY = new DispatchTable(NO_HANDLERS, NO_HANDLERS);
+	
+	/** Orders handlers by priority. Arrays.sort() is stable, so registration order is kept within a priority */
+	private static final Comparator<HandlerExecutor> PRIORITY_ORDER = new Comparator<HandlerExecutor>(){
+		@Override
+		public int compare(HandlerExecutor a, HandlerExecutor b){
+			return a.getPriority().compareTo(b.getPriority());
+		}
+	};
+	
+	/** Every handler registered without a routing key, in priority order */
+	private final HandlerExecutor[] handlers;
+	/** The handlers registered with each routing key, in priority order */
+	private final HashTrie<Object, HandlerExecutor[]> keyed;
+	/** The dispatcher for fire-and-forget handlers, or null if async mode is disabled */
+	private final AsyncDispatcher async;
+	/** The dispatcher for MONITOR handlers, or null if they are run on the calling thread */
+	private final MonitorDispatcher monitors;
+	/** The dispatch table for each concrete event class which has been called */
+	private final ConcurrentHashMap<Class<?>, DispatchTable> tables = new ConcurrentHashMap<Class<?>, DispatchTable>();
+	/** Every handler, keyed or not, built the first time getHandlers() is called */
+	private volatile HandlerExecutor[] all;
+	
+	/**
+	 * Constructs a new, empty registry.
+	 */
+	public HandlerRegistry(){
+		this(NO_HANDLERS, HashTrie.<Object, HandlerExecutor[]>empty(), null, null);
+	}
+	
+	/**
+	 * Constructs a new registry with no dispatch tables.
+	 * @param handlers The unkeyed handlers, in priority order. This array is not copied.
+	 * @param keyed The handlers for each routing key, in priority order.
+	 * @param async The async dispatcher, may be null.
+	 * @param monitors The MONITOR dispatcher, may be null.
+	 */
+	private HandlerRegistry(HandlerExecutor[] handlers, HashTrie<Object, HandlerExecutor[]> keyed, AsyncDispatcher async, MonitorDispatcher monitors){
+		this.handlers = handlers;
+		this.keyed = keyed;
+		this.async = async;
+		this.monitors = monitors;
+	}
+	
+	/**
+	 * Every registered handler, in priority order. This array must not be modified.
+	 * If there are keyed handlers, the array is built the first time this is called,
+	 * which visits every key.
+	 * @return Every registered handler
+	 */
+	public HandlerExecutor[] getHandlers(){
+		HandlerExecutor[] all = this.all;
+		if(all == null){
+			if(keyed.isEmpty()){
+				all = handlers;
+			}
+			else{
+				ArrayList<HandlerExecutor> list = new ArrayList<HandlerExecutor>(Arrays.asList(handlers));
+				for(Map.Entry<Object, HandlerExecutor[]> e : keyed.entries()){
+					list.addAll(Arrays.asList(e.getValue()));
+				}
+				all = sorted(list);
+			}
+			this.all = all;
+		}
+		return all;
+	}
+	
+	/**
+	 * The dispatcher used to run fire-and-forget handlers
+	 * @return The dispatcher, or null if async mode is disabled.
+	 */
+	public AsyncDispatcher getAsync(){
+		return async;
+	}
+	
+	/**
+	 * The dispatcher used to run MONITOR handlers concurrently
+	 * @return The dispatcher, or null if MONITOR handlers are run on the calling thread.
+	 */
+	public MonitorDispatcher getMonitors(){
+		return monitors;
+	}
+	
+	/**
+	 * Creates an empty registry with the same async and MONITOR dispatchers as this one.
+	 * @return The new registry
+	 */
+	public HandlerRegistry clear(){
+		return new HandlerRegistry(NO_HANDLERS, HashTrie.<Object, HandlerExecutor[]>empty(), async, monitors);
+	}
+	
+	/**
+	 * Creates a copy of this registry with the given handlers added. Dispatch
+	 * tables which none of the new handlers accept are shared with this registry.
+	 * Keyed handlers only copy the handlers and sub-tables of their own key, so
+	 * registering a listener for one key stays cheap however many keys there are.
+	 * Unkeyed handlers are merged into each table which accepts them, including
+	 * the sub-table of every key.
+	 * @param added The handlers to add
+	 * @return The new registry
+	 */
+	public HandlerRegistry register(Collection<HandlerExecutor> added){
+		if(added.isEmpty()){
+			return this;
+		}
+		
+		ArrayList<HandlerExecutor> plain = new ArrayList<HandlerExecutor>();
+		LinkedHashMap<Object, ArrayList<HandlerExecutor>> byKey = group(added, plain);
+		
+		HandlerExecutor[] unkeyed = plain.isEmpty() ? handlers : merge(handlers, sorted(plain));
+		HashTrie<Object, HandlerExecutor[]> keys = keyed;
+		for(Map.Entry<Object, ArrayList<HandlerExecutor>> e : byKey.entrySet()){
+			HandlerExecutor[] old = keys.get(e.getKey());
+			keys = keys.put(e.getKey(), merge(old == null ? NO_HANDLERS : old, sorted(e.getValue())));
+		}
+		
+		HandlerRegistry next = new HandlerRegistry(unkeyed, keys, async, monitors);
+		for(Map.Entry<Class<?>, DispatchTable> e : tables.entrySet()){
+			next.tables.put(e.getKey(), next.add(e.getKey(), e.getValue(), plain, byKey));
+		}
+		return next;
+	}
+	
+	/**
+	 * Creates a copy of this registry with the given handlers removed. Handlers
+	 * are matched by identity. Keyed handlers are only looked for among the
+	 * handlers of their own key, and only that key's sub-tables are copied.
+	 * Tables are patched by copying their arrays without the removed handlers,
+	 * rather than being rebuilt.
+	 * @param removed The handlers to remove
+	 * @return The new registry, or this registry if none of the handlers were registered.
+	 */
+	public HandlerRegistry unregister(HandlerExecutor[] removed){
+		ArrayList<HandlerExecutor> plain = new ArrayList<HandlerExecutor>();
+		LinkedHashMap<Object, ArrayList<HandlerExecutor>> byKey = group(Arrays.asList(removed), plain);
+		
+		HandlerExecutor[] unkeyed = plain.isEmpty() ? handlers : without(handlers, toArray(plain));
+		HashTrie<Object, HandlerExecutor[]> keys = keyed;
+		Iterator<Map.Entry<Object, ArrayList<HandlerExecutor>>> it = byKey.entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<Object, ArrayList<HandlerExecutor>> e = it.next();
+			HandlerExecutor[] old = keys.get(e.getKey());
+			HandlerExecutor[] rest = old == null ? null : without(old, toArray(e.getValue()));
+			if(rest == old){
+				it.remove(); //None of them were registered
+				continue;
+			}
+			keys = rest.length == 0 ? keys.remove(e.getKey()) : keys.put(e.getKey(), rest);
+		}
+		
+		if(unkeyed == handlers && keys == keyed){
+			return this;
+		}
+		
+		HandlerRegistry next = new HandlerRegistry(unkeyed, keys, async, monitors);
+		for(Map.Entry<Class<?>, DispatchTable> e : tables.entrySet()){
+			next.tables.put(e.getKey(), remove(e.getKey(), e.getValue(), toArray(plain), byKey));
+		}
+		return next;
+	}
+	
+	/**
+	 * Merges the given new handlers into a table which was built before they
+	 * were registered. The handlers are merged into the arrays which are
+	 * already in priority order, so nothing is sorted or filtered again.
+	 * @param type The concrete class of the event
+	 * @param table The table
+	 * @param plain The new unkeyed handlers
+	 * @param byKey The new keyed handlers, by key
+	 * @return The given table if none of the handlers accept the event, otherwise a new table.
+	 */
+	private DispatchTable add(Class<?> type, DispatchTable table, ArrayList<HandlerExecutor> plain, Map<Object, ArrayList<HandlerExecutor>> byKey){
+		Set<Class<?>> supertypes = EventHierarchy.getSupertypes(type);
+		boolean routed = isRouted(type);
+		
+		ArrayList<HandlerExecutor> sync = new ArrayList<HandlerExecutor>();
+		ArrayList<HandlerExecutor> deferred = new ArrayList<HandlerExecutor>();
+		split(supertypes, plain, sync, deferred);
+		if(routed == false){
+			//There is no routing key, so keyed handlers go with the unkeyed ones.
+			for(ArrayList<HandlerExecutor> group : byKey.values()){
+				split(supertypes, group, sync, deferred);
+			}
+		}
+		
+		HandlerExecutor[] newSync = sorted(sync);
+		HandlerExecutor[] newDeferred = sorted(deferred);
+		HandlerExecutor[] baseSync = merge(table.handlers, newSync);
+		HandlerExecutor[] baseDeferred = merge(table.deferred, newDeferred);
+		HashTrie<Object, DispatchTable> subs = table.keyed;
+		if(subs != null && (newSync.length > 0 || newDeferred.length > 0)){
+			//Every key's sub-table includes the unkeyed handlers.
+			HashTrie<Object, DispatchTable> copy = subs;
+			for(Map.Entry<Object, DispatchTable> e : subs.entries()){
+				DispatchTable sub = e.getValue();
+				copy = copy.put(e.getKey(), new DispatchTable(merge(sub.handlers, newSync), merge(sub.deferred, newDeferred)));
+			}
+			subs = copy;
+		}
+		
+		if(routed){
+			for(Map.Entry<Object, ArrayList<HandlerExecutor>> k : byKey.entrySet()){
+				ArrayList<HandlerExecutor> keySync = new ArrayList<HandlerExecutor>();
+				ArrayList<HandlerExecutor> keyDeferred = new ArrayList<HandlerExecutor>();
+				split(supertypes, k.getValue(), keySync, keyDeferred);
+				if(keySync.isEmpty() && keyDeferred.isEmpty()){
+					continue;
+				}
+				
+				//Merge the new handlers into the existing handlers for the key.
+				DispatchTable sub = subs == null ? null : subs.get(k.getKey());
+				HandlerExecutor[] subSync = sub == null ? baseSync : sub.handlers;
+				HandlerExecutor[] subDeferred = sub == null ? baseDeferred : sub.deferred;
+				if(subs == null){
+					subs = HashTrie.empty();
+				}
+				subs = subs.put(k.getKey(), new DispatchTable(merge(subSync, sorted(keySync)), merge(subDeferred, sorted(keyDeferred))));
+			}
+		}
+		
+		if(baseSync == table.handlers && baseDeferred == table.deferred && subs == table.keyed){
+			return table;
+		}
+		return new DispatchTable(baseSync, baseDeferred, subs);
+	}
+	
+	/**
+	 * Removes the given handlers from a table which was built while they were
+	 * registered. Each array is copied without them, and only if it held any.
+	 * Keyed handlers are only looked for in the sub-table of their own key.
+	 * @param type The concrete class of the event
+	 * @param table The table
+	 * @param plain The removed unkeyed handlers
+	 * @param byKey The removed keyed handlers, by key
+	 * @return The given table if it held none of the handlers, otherwise a new table.
+	 */
+	private static DispatchTable remove(Class<?> type, DispatchTable table, HandlerExecutor[] plain, Map<Object, ArrayList<HandlerExecutor>> byKey){
+		if(isRouted(type) == false){
+			//Keyed handlers are in the base arrays, and there are no sub-tables.
+			ArrayList<HandlerExecutor> all = new ArrayList<HandlerExecutor>(Arrays.asList(plain));
+			for(ArrayList<HandlerExecutor> group : byKey.values()){
+				all.addAll(group);
+			}
+			DispatchTable next = without(table, toArray(all));
+			return next.isEmpty() ? EMPTY : next;
+		}
+		
+		DispatchTable base = without(table, plain);
+		HashTrie<Object, DispatchTable> subs = table.keyed;
+		if(subs != null && base != table){
+			//The unkeyed handlers were in the table, so they are in every sub-table too.
+			HashTrie<Object, DispatchTable> copy = subs;
+			for(Map.Entry<Object, DispatchTable> e : subs.entries()){
+				copy = copy.put(e.getKey(), without(e.getValue(), plain));
+			}
+			subs = copy;
+		}
+		
+		for(Map.Entry<Object, ArrayList<HandlerExecutor>> k : byKey.entrySet()){
+			//Only the sub-table for the key can contain the handlers.
+			DispatchTable sub = subs == null ? null : subs.get(k.getKey());
+			if(sub == null){
+				continue;
+			}
+			sub = without(sub, toArray(k.getValue()));
+			subs = hasKeyed(sub) ? subs.put(k.getKey(), sub) : subs.remove(k.getKey());
+		}
+		
+		if(base == table && subs == table.keyed){
+			return table;
+		}
+		if(base.handlers.length == 0 && base.deferred.length == 0 && (subs == null || subs.isEmpty())){
+			return EMPTY;
+		}
+		return new DispatchTable(base.handlers, base.deferred, subs);
+	}
+	
+	/**
+	 * Adds each of the given handlers which accept an event with the given
+	 * supertypes to either the sync or deferred list.
+	 * @param supertypes The supertypes of the event class
+	 * @param list The handlers
+	 * @param sync The list of handlers to run on the calling thread
+	 * @param deferred The list of handlers to run on the async dispatcher
+	 */
+	private void split(Set<Class<?>> supertypes, Collection<HandlerExecutor> list, ArrayList<HandlerExecutor> sync, ArrayList<HandlerExecutor> deferred){
+		for(HandlerExecutor h : list){
+			if(supertypes.contains(h.getEventType())){
+				(isDeferred(h) ? deferred : sync).add(h);
+			}
+		}
+	}
+	
+	/**
+	 * Creates a copy of this registry with the given async dispatcher.
+	 * @param async The dispatcher, or null to disable async mode.
+	 * @return The new registry
+	 */
+	public HandlerRegistry setAsync(AsyncDispatcher async){
+		return rebake(new HandlerRegistry(handlers, keyed, async, monitors));
+	}
+	
+	/**
+	 * Creates a copy of this registry with the given MONITOR dispatcher. Every
+	 * dispatch table is rebuilt, as MONITOR handlers are no longer deferred to
+	 * the async dispatcher while there is a MONITOR dispatcher.
+	 * @param monitors The new MONITOR dispatcher, or null to run MONITOR handlers on the calling thread
+	 * @return The new registry
+	 */
+	public HandlerRegistry setMonitors(MonitorDispatcher monitors){
+		return rebake(new HandlerRegistry(handlers, keyed, async, monitors));
+	}
+	
+	/**
+	 * Builds a table in the given registry for every event class which has a
+	 * table in this registry.
+	 * @param next The new registry
+	 * @return The new registry
+	 */
+	private HandlerRegistry rebake(HandlerRegistry next){
+		for(Class<?> type : tables.keySet()){
+			next.tables.put(type, next.bake(type));
+		}
+		return next;
+	}
+	
+	/**
+	 * Returns true if the given handler is in this registry.
+	 * @param h The handler, compared by identity
+	 * @return true if the given handler is in this registry.
+	 */
+	public boolean contains(HandlerExecutor h){
+		HandlerExecutor[] candidates = h.getKey() == null ? handlers : keyed.get(h.getKey());
+		if(candidates == null){
+			return false;
+		}
+		for(HandlerExecutor o : candidates){
+			if(o == h){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Fetches the handlers which accept the given class of event, in the order
+	 * they should be called. The table is built the first time the class is seen.
+	 * @param type The concrete class of the event
+	 * @return The handlers, never null.
+	 */
+	public DispatchTable getTable(Class<?> type){
+		DispatchTable table = tables.get(type);
+		if(table == null){
+			//Two threads may build the same table at once, but they'll be identical.
+			table = bake(type);
+			tables.put(type, table);
+		}
+		return table;
+	}
+	
+	/**
+	 * Builds the priority ordered array of handlers which accept the given
+	 * class of event. Each handler's subscribed type is looked up in the
+	 * cached supertypes of the class, which include its interfaces.
+	 * In async mode, fire-and-forget handlers are split into their own array.
+	 * @param type The concrete class of the event
+	 * @return The handlers, never null.
+	 */
+	private DispatchTable bake(Class<?> type){
+		ArrayList<HandlerExecutor> matches = new ArrayList<HandlerExecutor>();
+		ArrayList<HandlerExecutor> deferred = new ArrayList<HandlerExecutor>();
+		Set<Class<?>> supertypes = EventHierarchy.getSupertypes(type);
+		for(HandlerExecutor h : handlers){
+			if(supertypes.contains(h.getEventType()) == false){
+				continue;
+			}
+			(isDeferred(h) ? deferred : matches).add(h);
+		}
+		
+		if(isRouted(type) == false){
+			//There is no routing key, so keyed handlers receive these events like any other.
+			for(Map.Entry<Object, HandlerExecutor[]> e : keyed.entries()){
+				for(HandlerExecutor h : e.getValue()){
+					if(supertypes.contains(h.getEventType())){
+						(isDeferred(h) ? deferred : matches).add(h);
+					}
+				}
+			}
+			HandlerExecutor[] sync = sorted(matches);
+			HandlerExecutor[] async = sorted(deferred);
+			if(sync.length == 0 && async.length == 0){
+				return EMPTY;
+			}
+			return new DispatchTable(sync, async);
+		}
+		
+		HandlerExecutor[] sync = toArray(matches);
+		HandlerExecutor[] async = toArray(deferred);
+		HashTrie<Object, DispatchTable> subs = HashTrie.empty();
+		if(keyed.isEmpty() == false){
+			//Each key gets the unkeyed handlers merged with its own.
+			for(Map.Entry<Object, HandlerExecutor[]> e : keyed.entries()){
+				ArrayList<HandlerExecutor> keySync = new ArrayList<HandlerExecutor>();
+				ArrayList<HandlerExecutor> keyDeferred = new ArrayList<HandlerExecutor>();
+				for(HandlerExecutor h : e.getValue()){
+					if(supertypes.contains(h.getEventType())){
+						(isDeferred(h) ? keyDeferred : keySync).add(h);
+					}
+				}
+				if(keySync.isEmpty() && keyDeferred.isEmpty()){
+					continue;
+				}
+				subs = subs.put(e.getKey(), new DispatchTable(merge(sync, toArray(keySync)), merge(async, toArray(keyDeferred))));
+			}
+		}
+		
+		if(sync.length == 0 && async.length == 0 && subs.isEmpty()){
+			return EMPTY;
+		}
+		return new DispatchTable(sync, async, subs);
+	}
+	
+	/**
+	 * Returns true if events of the given class are routed by key. Keyed
+	 * handlers only receive routed events with their own key, and receive
+	 * every other event they accept like unkeyed handlers do.
+	 * @param type The concrete class of the event
+	 * @return true if the class implements KeyedEvent
+	 */
+	private static boolean isRouted(Class<?> type){
+		return KeyedEvent.class.isAssignableFrom(type);
+	}
+	
+	/**
+	 * Returns true if the given handler should be run by the async dispatcher.
+	 * @param h The handler
+	 * @return true if the given handler should be run by the async dispatcher.
+	 */
+	private boolean isDeferred(HandlerExecutor h){
+		if(monitors != null && h.getPriority() == EventPriority.MONITOR){
+			return false;
+		}
+		return async != null && h.isAsync();
+	}
+	
+	/**
+	 * Splits the given handlers by their routing key.
+	 * @param list The handlers
+	 * @param unkeyed The list to add the handlers without a key to
+	 * @return The handlers for each key, in the order the keys were first seen.
+	 */
+	private static LinkedHashMap<Object, ArrayList<HandlerExecutor>> group(Collection<HandlerExecutor> list, ArrayList<HandlerExecutor> unkeyed){
+		LinkedHashMap<Object, ArrayList<HandlerExecutor>> byKey = new LinkedHashMap<Object, ArrayList<HandlerExecutor>>(4);
+		for(HandlerExecutor h : list){
+			if(h.getKey() == null){
+				unkeyed.add(h);
+				continue;
+			}
+			ArrayList<HandlerExecutor> group = byKey.get(h.getKey());
+			if(group == null){
+				group = new ArrayList<HandlerExecutor>();
+				byKey.put(h.getKey(), group);
+			}
+			group.add(h);
+		}
+		return byKey;
+	}
+	
+	/**
+	 * Returns true if the given table contains any keyed handlers.
+	 * @param table The table
+	 * @return true if the given table contains any keyed handlers.
+	 */
+	private static boolean hasKeyed(DispatchTable table){
+		for(HandlerExecutor h : table.handlers){
+			if(h.getKey() != null) return true;
+		}
+		for(HandlerExecutor h : table.deferred){
+			if(h.getKey() != null) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Copies the given table's own arrays without any of the removed handlers.
+	 * The copy has no sub-tables.
+	 * @param table The table
+	 * @param removed The handlers to remove, compared by identity
+	 * @return The given table if nothing was removed, otherwise a new table.
+	 */
+	private static DispatchTable without(DispatchTable table, HandlerExecutor[] removed){
+		HandlerExecutor[] sync = without(table.handlers, removed);
+		HandlerExecutor[] deferred = without(table.deferred, removed);
+		if(sync == table.handlers && deferred == table.deferred){
+			return table;
+		}
+		return new DispatchTable(sync, deferred);
+	}
+	
+	/**
+	 * Merges two arrays of handlers which are each in priority order. Where
+	 * handlers have the same priority, those from the first array come first.
+	 * @param a The first handlers
+	 * @param b The second handlers
+	 * @return The merged array. May be a or b if the other is empty.
+	 */
+	private static HandlerExecutor[] merge(HandlerExecutor[] a, HandlerExecutor[] b){
+		if(b.length == 0) return a;
+		if(a.length == 0) return b;
+		
+		HandlerExecutor[] merged = new HandlerExecutor[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while(i < a.length && j < b.length){
+			if(b[j].getPriority().compareTo(a[i].getPriority()) < 0){
+				merged[n++] = b[j++];
+			}
+			else{
+				merged[n++] = a[i++];
+			}
+		}
+		while(i < a.length) merged[n++] = a[i++];
+		while(j < b.length) merged[n++] = b[j++];
+		return merged;
+	}
+	
+	/**
+	 * Copies the given array without any of the removed handlers.
+	 * @param handlers The handlers
+	 * @param removed The handlers to remove, compared by identity
+	 * @return The given array if nothing was removed, otherwise a new array.
+	 */
+	private static HandlerExecutor[] without(HandlerExecutor[] handlers, HandlerExecutor[] removed){
+		HandlerExecutor[] copy = null;
+		int n = 0;
+		for(int i = 0; i < handlers.length; i++){
+			HandlerExecutor h = handlers[i];
+			boolean remove = false;
+			for(HandlerExecutor r : removed){
+				if(r == h){
+					remove = true;
+					break;
+				}
+			}
+			
+			if(remove){
+				if(copy == null){
+					copy = new HandlerExecutor[handlers.length - 1];
+					System.arraycopy(handlers, 0, copy, 0, i);
+					n = i;
+				}
+			}
+			else if(copy != null){
+				copy[n++] = h;
+			}
+		}
+		
+		if(copy == null){
+			return handlers;
+		}
+		if(n == 0){
+			return NO_HANDLERS;
+		}
+		return n == copy.length ? copy : Arrays.copyOf(copy, n);
+	}
+	
+	/**
+	 * Copies the given handlers into an array in priority order. The sort is
+	 * stable, so handlers with the same priority keep their order.
+	 * @param list The handlers
+	 * @return The sorted array
+	 */
+	private static HandlerExecutor[] sorted(ArrayList<HandlerExecutor> list){
+		HandlerExecutor[] array = toArray(list);
+		if(array.length > 1){
+			Arrays.sort(array, PRIORITY_ORDER);
+		}
+		return array;
+	}
+	
+	private static HandlerExecutor[] toArray(ArrayList<HandlerExecutor> list){
+		if(list.isEmpty()){
+			return NO_HANDLERS;
+		}
+		return list.toArray(new HandlerExecutor[list.size()]);
+	}
+}
@@ -0,0 +1,166 @@
+package org.maxgamer.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timing statistics for a single HandlerExecutor. These are only recorded
+ * while profiling is enabled on the EventManager. All methods are thread safe.
+ * 
+ * The histogram has one bucket per power of two nanoseconds. Bucket i counts
+ * calls which took at least 2^(i-1) and less than 2^i nanoseconds, and the
+ * last bucket counts everything slower than that.
+ * @author netherfoam
+ */
+public class HandlerStats {
+	/** The number of buckets in the histogram. The last one covers ~1 second and over */
+	public static final int BUCKETS = 32;
+	
+	/** The number of times the handler has been called */
+	private AtomicLong count = new AtomicLong();
+	/** The total time spent in the handler, in nanoseconds */
+	private AtomicLong total = new AtomicLong();
+	/** The longest single call to the handler, in nanoseconds */
+	private AtomicLong max = new AtomicLong();
+	/** The number of calls which went over the slow threshold */
+	private AtomicLong slow = new AtomicLong();
+	/** The number of calls in each latency bucket */
+	private AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+	
+	/**
+	 * Records a single call to the handler.
+	 * @param nanos The time the call took, in nanoseconds
+	 * @param threshold The time over which a call is considered slow, or <= 0 for no threshold
+	 * @return true if this was the first call to go over the threshold
+	 */
+	public boolean record(long nanos, long threshold){
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		histogram.incrementAndGet(getBucket(nanos));
+		
+		long m;
+		while(nanos > (m = max.get())){
+			if(max.compareAndSet(m, nanos)) break;
+		}
+		
+		if(threshold > 0 && nanos > threshold){
+			return slow.incrementAndGet() == 1;
+		}
+		return false;
+	}
+	
+	/**
+	 * The histogram bucket for the given time.
+	 * @param nanos The time, in nanoseconds
+	 * @return The bucket index
+	 */
+	private static int getBucket(long nanos){
+		int bucket = 64 - Long.numberOfLeadingZeros(nanos);
+		return bucket < BUCKETS ? bucket : BUCKETS - 1;
+	}
+	
+	/**
+	 * The number of times the handler has been called
+	 * @return The number of times the handler has been called
+	 */
+	public long getCount(){
+		return count.get();
+	}
+	
+	/**
+	 * The total time spent in the handler
+	 * @return The total time spent in the handler, in nanoseconds
+	 */
+	public long getTotalNanos(){
+		return total.get();
+	}
+	
+	/**
+	 * The longest single call to the handler
+	 * @return The longest single call to the handler, in nanoseconds
+	 */
+	public long getMaxNanos(){
+		return max.get();
+	}
+	
+	/**
+	 * The average time of a call to the handler
+	 * @return The average time of a call, in nanoseconds, or 0 if it has not been called.
+	 */
+	public long getMeanNanos(){
+		long c = count.get();
+		return c == 0 ? 0 : total.get() / c;
+	}
+	
+	/**
+	 * The number of calls which went over the slow threshold
+	 * @return The number of calls which went over the slow threshold
+	 */
+	public long getSlowCount(){
+		return slow.get();
+	}
+	
+	/**
+	 * Returns true if any call to the handler has gone over the slow threshold.
+	 * @return true if any call to the handler has gone over the slow threshold.
+	 */
+	public boolean isSlow(){
+		return slow.get() > 0;
+	}
+	
+	/**
+	 * A copy of the latency histogram.
+	 * @return The number of calls in each bucket
+	 */
+	public long[] getHistogram(){
+		long[] copy = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++){
+			copy[i] = histogram.get(i);
+		}
+		return copy;
+	}
+	
+	/**
+	 * Estimates the given percentile of call times from the histogram. The
+	 * result is the upper bound of the bucket the percentile falls in.
+	 * @param p The percentile, eg 0.99
+	 * @return The estimate, in nanoseconds, or 0 if the handler has not been called.
+	 */
+	public long getPercentileNanos(double p){
+		long[] buckets = getHistogram();
+		long c = 0;
+		for(long b : buckets){
+			c += b;
+		}
+		
+		long target = (long) Math.ceil(c * p);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += buckets[i];
+			if(seen >= target && seen > 0){
+				return i == BUCKETS - 1 ? getMaxNanos() : Math.min(1L << i, getMaxNanos());
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Clears all of the statistics.
+	 */
+	public void reset(){
+		count.set(0);
+		total.set(0);
+		max.set(0);
+		slow.set(0);
+		for(int i = 0; i < BUCKETS; i++){
+			histogram.set(i, 0);
+		}
+	}
+	
+	@Override
+	public String toString(){
+		return String.format("calls=%d, total=%.3fms, mean=%.3fus, p99<=%.3fus, max=%.3fus, slow=%d", 
+				getCount(), getTotalNanos() / 1000000.0, getMeanNanos() / 1000.0, 
+				getPercentileNanos(0.99) / 1000.0, getMaxNanos() / 1000.0, getSlowCount());
+	}
+}
@@ -0,0 +1,271 @@
+package org.maxgamer.event;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates HandlerInvokers for @EventHandler methods. The fastest available
+ * strategy is used, falling back to a slower one if it can't be used:<br/>
+ * 1. A class generated by the LambdaMetafactory, which calls the method directly
+ * and can be inlined by the JIT. This requires the listener class, method and
+ * event class to be public and visible from this class loader.<br/>
+ * 2. A MethodHandle to the method.<br/>
+ * 3. Plain reflection through Method.invoke().<br/>
+ * <br/>
+ * Invokers take the listener as an argument, so one invoker is created per
+ * method and shared by every listener of that class. Otherwise, registering a
+ * new listener would generate a new class each time. The cache is attached to
+ * the declaring class with a ClassValue, so it does not stop the class from
+ * being unloaded.
+ * @author netherfoam
+ */
+public class InvokerFactory {
+	/** The signature of HandlerInvoker.invoke() */
+	private static final MethodType INVOKE_TYPE = MethodType.methodType(void.class, Object.class, Event.class);
+	/** The signature of BatchInvoker.invoke() */
+	private static final MethodType BATCH_TYPE = MethodType.methodType(void.class, Object.class, List.class);
+	
+	/** The invoker for each handler method, by declaring class */
+	private static final ClassValue<ConcurrentHashMap<Method, HandlerInvoker>> INVOKERS = new ClassValue<ConcurrentHashMap<Method, HandlerInvoker>>(){
+		@Override
+		protected ConcurrentHashMap<Method, HandlerInvoker> computeValue(Class<?> type){
+			return new ConcurrentHashMap<Method, HandlerInvoker>();
+		}
+	};
+	/** The batch invoker for each batch handler method, by declaring class */
+	private static final ClassValue<ConcurrentHashMap<Method, BatchInvoker>> BATCH_INVOKERS = new ClassValue<ConcurrentHashMap<Method, BatchInvoker>>(){
+		@Override
+		protected ConcurrentHashMap<Method, BatchInvoker> computeValue(Class<?> type){
+			return new ConcurrentHashMap<Method, BatchInvoker>();
+		}
+	};
+	
+	private InvokerFactory(){
+		//Static utility class
+	}
+	
+	/**
+	 * Fetches the invoker for the given handler method, creating it the first
+	 * time the method is seen.
+	 * @param method The method, which must take a single argument.
+	 * @return The invoker, never null.
+	 */
+	public static HandlerInvoker create(Method method){
+		ConcurrentHashMap<Method, HandlerInvoker> cache = INVOKERS.get(method.getDeclaringClass());
+		HandlerInvoker invoker = cache.get(method);
+		if(invoker == null){
+			//Two threads may create an invoker at once, but only one is kept.
+			invoker = generateInvoker(method);
+			HandlerInvoker existing = cache.putIfAbsent(method, invoker);
+			if(existing != null){
+				invoker = existing;
+			}
+		}
+		return invoker;
+	}
+	
+	/**
+	 * Fetches the invoker for the given batch handler method, creating it the
+	 * first time the method is seen.
+	 * @param method The method, which must take a single List argument.
+	 * @return The invoker, never null.
+	 */
+	public static BatchInvoker createBatch(Method method){
+		ConcurrentHashMap<Method, BatchInvoker> cache = BATCH_INVOKERS.get(method.getDeclaringClass());
+		BatchInvoker invoker = cache.get(method);
+		if(invoker == null){
+			invoker = generateBatchInvoker(method);
+			BatchInvoker existing = cache.putIfAbsent(method, invoker);
+			if(existing != null){
+				invoker = existing;
+			}
+		}
+		return invoker;
+	}
+	
+	/**
+	 * Creates a new invoker for the given handler method.
+	 * @param method The method, which must take a single argument.
+	 * @return The invoker, never null.
+	 */
+	private static HandlerInvoker generateInvoker(Method method){
+		try{
+			HandlerInvoker invoker = (HandlerInvoker) generate(method, HandlerInvoker.class, INVOKE_TYPE);
+			if(invoker != null){
+				return invoker;
+			}
+		}
+		catch(Throwable t){
+			//Fall back to a method handle.
+		}
+		
+		try{
+			return new MethodHandleInvoker(MethodHandles.lookup().unreflect(method).asType(INVOKE_TYPE));
+		}
+		catch(Throwable t){
+			//Fall back to reflection.
+		}
+		
+		return new ReflectionInvoker(method);
+	}
+	
+	/**
+	 * Creates a new invoker for the given batch handler method.
+	 * @param method The method, which must take a single List argument.
+	 * @return The invoker, never null.
+	 */
+	private static BatchInvoker generateBatchInvoker(Method method){
+		try{
+			BatchInvoker invoker = (BatchInvoker) generate(method, BatchInvoker.class, BATCH_TYPE);
+			if(invoker != null){
+				return invoker;
+			}
+		}
+		catch(Throwable t){
+			//Fall back to a method handle.
+		}
+		
+		try{
+			return new BatchMethodHandleInvoker(MethodHandles.lookup().unreflect(method).asType(BATCH_TYPE));
+		}
+		catch(Throwable t){
+			//Fall back to reflection.
+		}
+		
+		return new BatchReflectionInvoker(method);
+	}
+	
+	/**
+	 * Generates a class which calls the given method directly.
+	 * @param method The method to call
+	 * @param iface The invoker interface to implement
+	 * @param signature The signature of the interface's invoke() method
+	 * @return The invoker, or null if the method can't be called from a generated class.
+	 * @throws Throwable If the class could not be generated
+	 */
+	private static Object generate(Method method, Class<?> iface, MethodType signature) throws Throwable{
+		Class<?> owner = method.getDeclaringClass();
+		Class<?> type = method.getParameterTypes()[0];
+		
+		if(Modifier.isStatic(method.getModifiers()) || Modifier.isPublic(method.getModifiers()) == false){
+			return null;
+		}
+		if(signature.parameterType(1).isAssignableFrom(type) == false){
+			return null;
+		}
+		if(isAccessible(owner) == false || isAccessible(type) == false){
+			return null;
+		}
+		
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodHandle target = lookup.unreflect(method);
+		CallSite site = LambdaMetafactory.metafactory(lookup, "invoke", MethodType.methodType(iface), 
+				signature, target, MethodType.methodType(void.class, owner, type));
+		
+		return site.getTarget().invoke();
+	}
+	
+	/**
+	 * Returns true if a generated class may refer to the given class by name. The
+	 * class must be public, and must be the same class when loaded through our
+	 * class loader (Listeners loaded by a ScriptLoader usually are not).
+	 * @param clazz The class
+	 * @return true if a generated class may refer to the given class by name.
+	 */
+	private static boolean isAccessible(Class<?> clazz){
+		for(Class<?> c = clazz; c != null; c = c.getEnclosingClass()){
+			if(Modifier.isPublic(c.getModifiers()) == false){
+				return false;
+			}
+		}
+		
+		try{
+			return Class.forName(clazz.getName(), false, InvokerFactory.class.getClassLoader()) == clazz;
+		}
+		catch(ClassNotFoundException e){
+			return false;
+		}
+	}
+	
+	/**
+	 * Calls a handler through a MethodHandle.
+	 */
+	private static class MethodHandleInvoker implements HandlerInvoker{
+		private final MethodHandle handle;
+		
+		public MethodHandleInvoker(MethodHandle handle){
+			this.handle = handle;
+		}
+		
+		@Override
+		public void invoke(Object target, Event event) throws Throwable{
+			handle.invokeExact(target, event);
+		}
+	}
+	
+	/**
+	 * Calls a handler through Method.invoke(). This is the slowest, but always works.
+	 */
+	private static class ReflectionInvoker implements HandlerInvoker{
+		private final Method method;
+		
+		public ReflectionInvoker(Method method){
+			this.method = method;
+		}
+		
+		@Override
+		public void invoke(Object target, Event event) throws Throwable{
+			try{
+				method.invoke(target, event);
+			}
+			catch(InvocationTargetException e){
+				throw e.getCause();
+			}
+		}
+	}
+	
+	/**
+	 * Calls a batch handler through a MethodHandle.
+	 */
+	private static class BatchMethodHandleInvoker implements BatchInvoker{
+		private final MethodHandle handle;
+		
+		public BatchMethodHandleInvoker(MethodHandle handle){
+			this.handle = handle;
+		}
+		
+		@Override
+		public void invoke(Object target, List<? extends Event> events) throws Throwable{
+			handle.invokeExact(target, (List<?>) events);
+		}
+	}
+	
+	/**
+	 * Calls a batch handler through Method.invoke().
+	 */
+	private static class BatchReflectionInvoker implements BatchInvoker{
+		private final Method method;
+		
+		public BatchReflectionInvoker(Method method){
+			this.method = method;
+		}
+		
+		@Override
+		public void invoke(Object target, List<? extends Event> events) throws Throwable{
+			try{
+				method.invoke(target, events);
+			}
+			catch(InvocationTargetException e){
+				throw e.getCause();
+			}
+		}
+	}
+}
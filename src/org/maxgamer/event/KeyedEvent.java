@@ -0,0 +1,21 @@
+package org.maxgamer.event;
+
+/**
+ * An event which concerns a particular thing, such as a player or entity.
+ * Listeners registered with a key through EventManager.register(listener, key)
+ * only receive keyed events whose routing key equals their key, so that
+ * (For example) each player's listener only sees that player's events.
+ * The EventManager finds them with a single hash lookup, instead of calling
+ * every player's listener and letting each one check the player.
+ * @author netherfoam
+ */
+@EventInterface
+public interface KeyedEvent {
+	/**
+	 * The key used to find the listeners for this event. This is compared with
+	 * the keys of listeners using equals() and hashCode(), so a stable identifier
+	 * such as an entity id is best.
+	 * @return The routing key, or null if only unkeyed listeners should receive this event.
+	 */
+	public Object getRoutingKey();
+}
@@ -0,0 +1,23 @@
+package org.maxgamer.event;
+
+/**
+ * Creates the HandlerExecutors for one class of listener without reflection.
+ * Implementations are generated at compile time by the EventHandlerProcessor,
+ * and are named after the listener class with the suffix "$$EventDispatcher".
+ * @author netherfoam
+ * @see org.maxgamer.event.processor.EventHandlerProcessor
+ */
+public interface ListenerDispatcher {
+	/**
+	 * Constructs a new instance of the listener class, using its no-args constructor.
+	 * @return The new listener, or null if the class has no accessible no-args constructor.
+	 */
+	public EventListener create();
+	
+	/**
+	 * Creates a HandlerExecutor for each @EventHandler method of the given listener.
+	 * @param listener The listener, which must be an instance of exactly the class this dispatcher was generated for.
+	 * @return The handlers, never null, possibly empty.
+	 */
+	public HandlerExecutor[] getHandlers(EventListener listener);
+}
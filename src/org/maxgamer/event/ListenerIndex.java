@@ -0,0 +1,125 @@
+package org.maxgamer.event;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.LinkedList;
+
+/**
+ * Reads the output of the EventHandlerProcessor. That is the index of
+ * @AutoRegister listeners, and the generated ListenerDispatcher for each
+ * listener class. If a listener was not compiled with the processor, there
+ * is no dispatcher, and the EventManager falls back to reflection.
+ * @author netherfoam
+ */
+public class ListenerIndex {
+	/** The resource which lists the @AutoRegister listener classes, one binary class name per line */
+	public static final String INDEX = "META-INF/netherlib/listeners";
+	/** Appended to the binary name of a listener class to get the name of its generated dispatcher */
+	public static final String DISPATCHER_SUFFIX = "$$EventDispatcher";
+	
+	/** Placeholder for classes which have no generated dispatcher */
+	private static final ListenerDispatcher NONE = new ListenerDispatcher(){
+		@Override
+		public EventListener create(){
+			return null;
+		}
+		
+		@Override
+		public HandlerExecutor[] getHandlers(EventListener listener){
+			return null;
+		}
+	};
+	
+	/**
+	 * The generated dispatcher for each listener class which has been looked up.
+	 * A ClassValue is stored with the class itself, so it does not stop the
+	 * class (Or the class loader from a reload) from being unloaded.
+	 */
+	private static final ClassValue<ListenerDispatcher> DISPATCHERS = new ClassValue<ListenerDispatcher>(){
+		@Override
+		protected ListenerDispatcher computeValue(Class<?> type){
+			return load(type);
+		}
+	};
+	
+	private ListenerIndex(){
+		//Static utility class
+	}
+	
+	/**
+	 * Fetches the generated dispatcher for the given listener class. The result is cached.
+	 * @param clazz The listener class
+	 * @return The dispatcher, or null if the class was not compiled with the EventHandlerProcessor.
+	 */
+	public static ListenerDispatcher getDispatcher(Class<?> clazz){
+		ListenerDispatcher d = DISPATCHERS.get(clazz);
+		return d == NONE ? null : d;
+	}
+	
+	private static ListenerDispatcher load(Class<?> clazz){
+		try{
+			Class<?> d = Class.forName(clazz.getName() + DISPATCHER_SUFFIX, true, clazz.getClassLoader());
+			return (ListenerDispatcher) d.getDeclaredConstructor().newInstance();
+		}
+		catch(ClassNotFoundException e){
+			//Not compiled with the processor.
+		}
+		catch(Exception e){
+			System.out.println("Failed to load generated dispatcher for " + clazz.getName());
+			e.printStackTrace();
+		}
+		return NONE;
+	}
+	
+	/**
+	 * Loads every listener class named in the index resources visible to the given class loader.
+	 * @param loader The class loader to read the index from, and to load the classes with.
+	 * @return The classes, never null. Empty if there is no index.
+	 * @throws IOException If an index could not be read
+	 */
+	public static LinkedList<Class<?>> getListeners(ClassLoader loader) throws IOException{
+		LinkedList<Class<?>> classes = new LinkedList<Class<?>>();
+		Enumeration<URL> indexes = loader.getResources(INDEX);
+		while(indexes.hasMoreElements()){
+			InputStream in = indexes.nextElement().openStream();
+			try{
+				for(String name : read(in)){
+					try{
+						classes.add(Class.forName(name, false, loader));
+					}
+					catch(ClassNotFoundException e){
+						System.out.println("Listener in index no longer exists: " + name);
+					}
+				}
+			}
+			finally{
+				in.close();
+			}
+		}
+		return classes;
+	}
+	
+	/**
+	 * Reads the class names from an index.
+	 * @param in The index
+	 * @return The class names, never null.
+	 * @throws IOException If the index could not be read
+	 */
+	private static LinkedList<String> read(InputStream in) throws IOException{
+		LinkedList<String> names = new LinkedList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		while((line = reader.readLine()) != null){
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")){
+				continue;
+			}
+			names.add(line);
+		}
+		return names;
+	}
+}
@@ -0,0 +1,156 @@
+package org.maxgamer.event;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the MONITOR handlers of an event concurrently on an Executor, once the
+ * handlers of every other priority have finished on the calling thread. MONITOR
+ * handlers may not change the outcome of an event, so they do not need to be
+ * run one after another.
+ * 
+ * If the caller waits, it also runs handlers itself until there are none left,
+ * and then waits for the handlers which other threads started. This means the
+ * event is always finished even if the executor is busy or has no threads free.
+ * @author netherfoam
+ */
+public class MonitorDispatcher {
+	/** The manager which owns this dispatcher, used to invoke handlers */
+	private EventManager manager;
+	/** The executor which handlers are run on */
+	private Executor executor;
+	/** True if the caller waits for the handlers to finish */
+	private boolean wait;
+	
+	/**
+	 * Constructs a new MonitorDispatcher.
+	 * @param manager The manager to invoke handlers through
+	 * @param executor The executor to run handlers on
+	 * @param wait true if the calling thread should wait for the handlers to finish
+	 */
+	public MonitorDispatcher(EventManager manager, Executor executor, boolean wait){
+		if(manager == null){
+			throw new NullPointerException("Manager may not be null.");
+		}
+		if(executor == null){
+			throw new NullPointerException("Executor may not be null.");
+		}
+		this.manager = manager;
+		this.executor = executor;
+		this.wait = wait;
+	}
+	
+	/**
+	 * The executor which handlers are run on
+	 * @return The executor which handlers are run on
+	 */
+	public Executor getExecutor(){
+		return executor;
+	}
+	
+	/**
+	 * Returns true if the calling thread waits for the handlers to finish.
+	 * @return true if the calling thread waits for the handlers to finish.
+	 */
+	public boolean isWait(){
+		return wait;
+	}
+	
+	/**
+	 * Runs the given handlers with the given event.
+	 * @param event The event
+	 * @param handlers The handlers
+	 * @param from The index of the first handler to run. All handlers after it are run too.
+	 */
+	public void dispatch(Event event, HandlerExecutor[] handlers, int from){
+		int count = handlers.length - from;
+		if(count <= 0){
+			return;
+		}
+		if(wait && count == 1){
+			//Nothing to run concurrently with.
+			run(handlers[from], event);
+			return;
+		}
+		
+		Task task = new Task(event, handlers, from, wait ? new CountDownLatch(count) : null);
+		//When waiting, the calling thread takes one of the tasks itself.
+		for(int i = wait ? 1 : 0; i < count; i++){
+			executor.execute(task);
+		}
+		
+		if(wait){
+			task.run();
+			task.await();
+		}
+	}
+	
+	/**
+	 * Runs a handler unless the event was cancelled and the handler ignores cancelled events.
+	 * @param h The handler
+	 * @param event The event
+	 */
+	private void run(HandlerExecutor h, Event event){
+		if(manager.isSkipped(h, event)){
+			return;
+		}
+		manager.invoke(h, event);
+	}
+	
+	/**
+	 * The MONITOR handlers for one event. Each thread running the task claims
+	 * handlers until there are none left, so a thread which starts late does
+	 * no work rather than blocking.
+	 */
+	private class Task implements Runnable{
+		private Event event;
+		private HandlerExecutor[] handlers;
+		/** The index of the next handler to claim */
+		private AtomicInteger next;
+		/** Counts down as each handler finishes, or null if nobody waits */
+		private CountDownLatch done;
+		
+		public Task(Event event, HandlerExecutor[] handlers, int from, CountDownLatch done){
+			this.event = event;
+			this.handlers = handlers;
+			this.next = new AtomicInteger(from);
+			this.done = done;
+		}
+		
+		@Override
+		public void run(){
+			int i;
+			while((i = next.getAndIncrement()) < handlers.length){
+				try{
+					MonitorDispatcher.this.run(handlers[i], event);
+				}
+				finally{
+					if(done != null){
+						done.countDown();
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Waits until every handler has finished. If the thread is interrupted,
+		 * this keeps waiting and then restores the interrupt.
+		 */
+		public void await(){
+			boolean interrupted = false;
+			while(true){
+				try{
+					done.await();
+					break;
+				}
+				catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+			if(interrupted){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
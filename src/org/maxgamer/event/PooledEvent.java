@@ -0,0 +1,55 @@
+package org.maxgamer.event;
+
+/**
+ * An event which is borrowed from an EventPool and reused, instead of being
+ * allocated for every call. This is for events which are called many times
+ * per tick, such as movement or packets.
+ * 
+ * Handlers must not keep a reference to a pooled event once they return, as
+ * it will be reset and used for another call. When the pool is in debug mode,
+ * the accessors of a subclass should call checkValid(), which throws an
+ * exception if the event is used after it has been released.
+ * @author netherfoam
+ * @see EventPool
+ */
+public abstract class PooledEvent extends Event {
+	/** True if this event has been returned to its pool, only set in debug mode */
+	private volatile boolean released;
+	/** Where this event was released, only set in debug mode */
+	private Throwable releasedAt;
+	
+	/**
+	 * Resets the fields of this event to their defaults, so that it can be
+	 * reused. Called when the event is returned to its pool.
+	 */
+	protected abstract void reset();
+	
+	/**
+	 * Throws an IllegalStateException if this event was released by a pool in
+	 * debug mode. This should be called by the accessors of subclasses, so that
+	 * a handler which keeps a reference to the event is caught the next time
+	 * it uses the event. In normal mode, this is a single volatile read.
+	 */
+	protected final void checkValid(){
+		if(released){
+			throw new IllegalStateException("Pooled event " + getClass().getName() + " was used after it was released. Handlers may not keep references to pooled events.", releasedAt);
+		}
+	}
+	
+	/**
+	 * Marks this event as released, after which checkValid() fails.
+	 * @param at Where the event was released, or null
+	 */
+	void poison(Throwable at){
+		this.releasedAt = at;
+		this.released = true;
+	}
+	
+	/**
+	 * Returns true if this event was released by a pool in debug mode.
+	 * @return true if this event was released by a pool in debug mode.
+	 */
+	boolean isReleased(){
+		return released;
+	}
+}
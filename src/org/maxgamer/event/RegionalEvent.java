@@ -0,0 +1,16 @@
+package org.maxgamer.event;
+
+/**
+ * An event which happens in a single region of the world. When posted to a
+ * ShardedEventBus, it is called on the thread which processes that region.
+ * @author netherfoam
+ * @see ShardedEventBus
+ */
+@EventInterface
+public interface RegionalEvent {
+	/**
+	 * The region this event happened in.
+	 * @return The id of the region, from 0 to ShardedEventBus.getRegionCount() - 1
+	 */
+	public int getRegion();
+}
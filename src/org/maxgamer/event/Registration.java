@@ -0,0 +1,60 @@
+package org.maxgamer.event;
+
+/**
+ * Returned when a listener is registered with an EventManager. The registration
+ * remembers exactly which handlers were added, so that unregistering does not
+ * need to search the listener's methods again.
+ * @author netherfoam
+ */
+public class Registration {
+	/** The manager the listener was registered with */
+	private EventManager manager;
+	/** The listener which was registered */
+	private EventListener listener;
+	/** The handlers which were added for the listener */
+	private HandlerExecutor[] handlers;
+	
+	/**
+	 * Constructs a new Registration.
+	 * @param manager The manager the listener was registered with
+	 * @param listener The listener which was registered
+	 * @param handlers The handlers which were added for the listener
+	 */
+	public Registration(EventManager manager, EventListener listener, HandlerExecutor[] handlers){
+		this.manager = manager;
+		this.listener = listener;
+		this.handlers = handlers;
+	}
+	
+	/**
+	 * The listener which was registered
+	 * @return The listener which was registered
+	 */
+	public EventListener getListener(){
+		return listener;
+	}
+	
+	/**
+	 * The handlers which were added for the listener. This array must not be modified.
+	 * @return The handlers which were added for the listener
+	 */
+	public HandlerExecutor[] getHandlers(){
+		return handlers;
+	}
+	
+	/**
+	 * Returns true if the listener's handlers are still registered.
+	 * @return true if the listener's handlers are still registered.
+	 */
+	public boolean isRegistered(){
+		return handlers.length > 0 && manager.isRegistered(handlers[0]);
+	}
+	
+	/**
+	 * Removes the listener's handlers from the manager. This is safe to call more than once.
+	 * @return true if any handlers were removed, false if they had already been removed.
+	 */
+	public boolean unregister(){
+		return manager.unregister(handlers);
+	}
+}
@@ -0,0 +1,108 @@
+package org.maxgamer.event;
+
+/**
+ * Spreads events across a fixed number of regions, each processed by its own
+ * worker thread. Listeners are registered once, with the EventManager, but
+ * each event is called on the thread of the region it happened in, so regions
+ * never contend with each other and each region's data stays on one core.
+ * 
+ * Events implementing RegionalEvent are posted to their region only. Any other
+ * event is global, and is called once, like any other event: on the current
+ * region if a worker posts it, otherwise on region 0. Handlers are registered
+ * with the EventManager rather than with a region, so calling a global event
+ * once already reaches every handler.
+ * 
+ * Each worker thread should bind itself to its region once, and then drain it regularly:<pre>
+ * EventRegion region = bus.getRegion(id);
+ * region.bind();
+ * while(running){
+ *    region.drain();
+ *    //Process the region. Events posted here are called straight away.
+ * }
+ * </pre>
+ * The registered handlers are read from the EventManager's current snapshot
+ * for each event, which needs no locking, so registering listeners at any
+ * time is safe.
+ * @author netherfoam
+ */
+public class ShardedEventBus {
+	/** The manager which listeners are registered with */
+	private EventManager manager;
+	/** The regions, indexed by id */
+	private EventRegion[] regions;
+	
+	/**
+	 * Constructs a new ShardedEventBus.
+	 * @param manager The manager which listeners are registered with
+	 * @param regions The number of regions
+	 */
+	public ShardedEventBus(EventManager manager, int regions){
+		if(manager == null){
+			throw new NullPointerException("Manager may not be null.");
+		}
+		if(regions <= 0){
+			throw new IllegalArgumentException("There must be at least one region!");
+		}
+		
+		this.manager = manager;
+		this.regions = new EventRegion[regions];
+		for(int i = 0; i < regions; i++){
+			this.regions[i] = new EventRegion(manager, i);
+		}
+	}
+	
+	/**
+	 * The manager which listeners are registered with
+	 * @return The manager which listeners are registered with
+	 */
+	public EventManager getManager(){
+		return manager;
+	}
+	
+	/**
+	 * The number of regions
+	 * @return The number of regions
+	 */
+	public int getRegionCount(){
+		return regions.length;
+	}
+	
+	/**
+	 * Fetches the region with the given id.
+	 * @param id The id of the region
+	 * @return The region
+	 * @throws IllegalArgumentException If there is no region with the given id
+	 */
+	public EventRegion getRegion(int id){
+		if(id < 0 || id >= regions.length){
+			throw new IllegalArgumentException("Region " + id + " does not exist, there are " + regions.length + " regions.");
+		}
+		return regions[id];
+	}
+	
+	/**
+	 * Posts the given event. A RegionalEvent goes to its own region. Any other
+	 * event goes to the current thread's region if it is a worker for this bus,
+	 * and otherwise to region 0. The event is called immediately by a region
+	 * if the current thread is that region's worker, and otherwise when the
+	 * region is next drained. Either way the event is called exactly once.
+	 * @param event The event
+	 */
+	public void post(Event event){
+		if (event == null) {
+			throw new NullPointerException("Event may not be null!");
+		}
+		
+		if(event instanceof RegionalEvent){
+			getRegion(((RegionalEvent) event).getRegion()).post(event);
+			return;
+		}
+		
+		EventRegion current = EventRegion.current();
+		if(current != null && current.getId() < regions.length && regions[current.getId()] == current){
+			current.post(event);
+			return;
+		}
+		regions[0].post(event);
+	}
+}
@@ -0,0 +1,57 @@
+package org.maxgamer.event;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for an EventRingBuffer. Producers wait when the buffer is
+ * full, and the consumer waits when the buffer is empty. The strategies trade
+ * CPU usage for latency.
+ * @author netherfoam
+ */
+public enum WaitStrategy {
+	/**
+	 * Spins without giving up the CPU. This has the lowest latency, but uses a
+	 * whole core while waiting, so should only be used if a core can be spared.
+	 */
+	BUSY_SPIN{
+		@Override
+		public void idle(int counter){
+			//Spin.
+		}
+	},
+	/**
+	 * Spins for a short while, then yields to other threads between checks.
+	 * Low latency, and other threads still make progress.
+	 */
+	YIELD{
+		@Override
+		public void idle(int counter){
+			if(counter > SPIN_TRIES){
+				Thread.yield();
+			}
+		}
+	},
+	/**
+	 * Spins for a short while, then parks the thread briefly between checks.
+	 * Uses very little CPU while idle, at the cost of some latency.
+	 */
+	PARK{
+		@Override
+		public void idle(int counter){
+			if(counter > SPIN_TRIES){
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+	};
+	
+	/** The number of times to spin before yielding or parking */
+	private static final int SPIN_TRIES = 100;
+	/** The time to park for between checks */
+	private static final long PARK_NANOS = 50000L;
+	
+	/**
+	 * Called each time a waiting thread finds it still can't continue.
+	 * @param counter The number of times this has been called during the current wait, starting at 1.
+	 */
+	public abstract void idle(int counter);
+}
@@ -0,0 +1,405 @@
+package org.maxgamer.event.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+import org.maxgamer.event.AutoRegister;
+import org.maxgamer.event.EventHandler;
+import org.maxgamer.event.EventInterface;
+import org.maxgamer.event.ListenerIndex;
+
+/**
+ * Generates, at compile time, everything the EventManager would otherwise
+ * find through reflection:<br/>
+ * 1. A ListenerDispatcher for each EventListener class with @EventHandler
+ * methods, which constructs the listener and calls its handlers directly.<br/>
+ * 2. An index (META-INF/netherlib/listeners) of every @AutoRegister listener,
+ * so that EventManager.reload() doesn't need to search for classes. On an
+ * incremental build only some classes are compiled, so the listeners already
+ * in the index are kept unless their class was recompiled without
+ * @AutoRegister.<br/>
+ * <br/>
+ * A listener is skipped (And handled by reflection at runtime instead) if any
+ * of its handlers can't be called from a class in the same package, such as a
+ * private nested listener class.
+ * 
+ * The processor is registered through META-INF/services, so it runs whenever
+ * NetherLib is on the compiler's processor path.
+ * @author netherfoam
+ */
+@SupportedAnnotationTypes({"org.maxgamer.event.EventHandler", "org.maxgamer.event.AutoRegister"})
+public class EventHandlerProcessor extends AbstractProcessor {
+	private Elements elements;
+	private Types types;
+	/** The erasure of org.maxgamer.event.EventListener */
+	private TypeMirror listenerType;
+	/** The erasure of org.maxgamer.event.Event */
+	private TypeMirror eventType;
+	/** The erasure of java.util.List */
+	private TypeMirror listType;
+	
+	/** The binary names of the @AutoRegister listeners found so far */
+	private LinkedHashSet<String> index = new LinkedHashSet<String>();
+	/** The binary names of every class compiled in this build, listener or not */
+	private LinkedHashSet<String> compiled = new LinkedHashSet<String>();
+	
+	@Override
+	public synchronized void init(ProcessingEnvironment env){
+		super.init(env);
+		this.elements = env.getElementUtils();
+		this.types = env.getTypeUtils();
+		this.listenerType = types.erasure(elements.getTypeElement("org.maxgamer.event.EventListener").asType());
+		this.eventType = types.erasure(elements.getTypeElement("org.maxgamer.event.Event").asType());
+		this.listType = types.erasure(elements.getTypeElement("java.util.List").asType());
+	}
+	
+	@Override
+	public SourceVersion getSupportedSourceVersion(){
+		return SourceVersion.latestSupported();
+	}
+	
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env){
+		if(env.processingOver()){
+			writeIndex();
+			return false;
+		}
+		
+		for(TypeElement type : ElementFilter.typesIn(env.getRootElements())){
+			visit(type);
+		}
+		return false;
+	}
+	
+	/**
+	 * Generates a dispatcher for the given type and its nested types, if they are listeners.
+	 * @param type The type
+	 */
+	private void visit(TypeElement type){
+		for(TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())){
+			visit(nested);
+		}
+		compiled.add(elements.getBinaryName(type).toString());
+		
+		if(type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)){
+			return;
+		}
+		if(types.isAssignable(types.erasure(type.asType()), listenerType) == false){
+			return;
+		}
+		
+		if(type.getAnnotation(AutoRegister.class) != null){
+			index.add(elements.getBinaryName(type).toString());
+		}
+		
+		List<ExecutableElement> handlers = new ArrayList<ExecutableElement>();
+		for(ExecutableElement m : ElementFilter.methodsIn(elements.getAllMembers(type))){
+			if(m.getAnnotation(EventHandler.class) == null){
+				continue;
+			}
+			if(m.getModifiers().contains(Modifier.PUBLIC) == false || m.getModifiers().contains(Modifier.STATIC)){
+				continue; //Not a handler to the EventManager either.
+			}
+			if(getEventType(m) == null){
+				continue;
+			}
+			if(isAccessible(getEventType(m)) == false){
+				return;
+			}
+			handlers.add(m);
+		}
+		
+		if(handlers.isEmpty() || isAccessible(type) == false){
+			return;
+		}
+		
+		try{
+			writeDispatcher(type, handlers);
+		}
+		catch(IOException e){
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write event dispatcher: " + e, type);
+		}
+	}
+	
+	/**
+	 * Finds the type of event the given method accepts. This is the type of
+	 * its only parameter, or the element type if the parameter is a List.
+	 * @param m The method
+	 * @return The type of event, or null if the method does not accept events.
+	 */
+	private TypeElement getEventType(ExecutableElement m){
+		List<? extends VariableElement> params = m.getParameters();
+		if(params.size() != 1){
+			return null;
+		}
+		
+		TypeMirror param = params.get(0).asType();
+		if(param.getKind() != TypeKind.DECLARED){
+			return null;
+		}
+		if(types.isSameType(types.erasure(param), listType) == false){
+			return isEventType(param) ? (TypeElement) types.asElement(param) : null;
+		}
+		
+		//A batch handler, eg. void on(List<MoveEvent> events)
+		List<? extends TypeMirror> args = ((DeclaredType) param).getTypeArguments();
+		if(args.size() != 1){
+			return null;
+		}
+		TypeMirror element = args.get(0);
+		if(element.getKind() == TypeKind.WILDCARD){
+			element = ((WildcardType) element).getExtendsBound();
+		}
+		if(element == null || element.getKind() != TypeKind.DECLARED){
+			return null;
+		}
+		if(isEventType(element)){
+			return (TypeElement) types.asElement(element);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns true if handlers may subscribe to the given type, which must be
+	 * an Event class or an interface marked with @EventInterface.
+	 * @param type The type
+	 * @return true if handlers may subscribe to the given type.
+	 */
+	private boolean isEventType(TypeMirror type){
+		if(types.isAssignable(types.erasure(type), eventType)){
+			return true;
+		}
+		Element element = types.asElement(type);
+		return element.getKind() == ElementKind.INTERFACE && element.getAnnotation(EventInterface.class) != null;
+	}
+	
+	/**
+	 * Returns true if the given method accepts a List of events.
+	 * @param m The method
+	 * @return true if the given method accepts a List of events.
+	 */
+	private boolean isBatch(ExecutableElement m){
+		return types.isSameType(types.erasure(m.getParameters().get(0).asType()), listType);
+	}
+	
+	/**
+	 * Returns true if the given type can be referred to by a class in any package.
+	 * Package private types are not accepted, since the event type may be in another package.
+	 * @param type The type
+	 * @return true if the type is public, and all types it is nested in are public.
+	 */
+	private boolean isAccessible(TypeElement type){
+		Element e = type;
+		while(e instanceof TypeElement){
+			TypeElement t = (TypeElement) e;
+			if(t.getModifiers().contains(Modifier.PUBLIC) == false){
+				return false;
+			}
+			e = e.getEnclosingElement();
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns true if the given class can be constructed with no arguments by
+	 * a class in the same package.
+	 * @param type The class
+	 * @return true if the class can be constructed with no arguments.
+	 */
+	private boolean isConstructible(TypeElement type){
+		if(type.getNestingKind() == NestingKind.MEMBER && type.getModifiers().contains(Modifier.STATIC) == false){
+			return false; //Inner classes need an outer instance.
+		}
+		if(type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS){
+			return false;
+		}
+		for(ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())){
+			if(c.getParameters().isEmpty() && c.getModifiers().contains(Modifier.PRIVATE) == false){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Writes the ListenerDispatcher for the given listener class.
+	 * @param type The listener class
+	 * @param handlers The @EventHandler methods of the listener
+	 * @throws IOException If the source file could not be written
+	 */
+	private void writeDispatcher(TypeElement type, List<ExecutableElement> handlers) throws IOException{
+		PackageElement pkg = elements.getPackageOf(type);
+		String binary = elements.getBinaryName(type).toString();
+		String simple = binary.substring(binary.lastIndexOf('.') + 1) + ListenerIndex.DISPATCHER_SUFFIX;
+		String qualified = pkg.isUnnamed() ? simple : pkg.getQualifiedName() + "." + simple;
+		String listener = type.getQualifiedName().toString();
+		
+		JavaFileObject file = processingEnv.getFiler().createSourceFile(qualified, type);
+		Writer w = file.openWriter();
+		try{
+			if(pkg.isUnnamed() == false){
+				w.write("package " + pkg.getQualifiedName() + ";\n\n");
+			}
+			w.write("/** Generated by " + getClass().getName() + " for " + listener + ". Do not edit. */\n");
+			w.write("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+			w.write("public final class " + simple + " implements org.maxgamer.event.ListenerDispatcher {\n");
+			
+			w.write("\t@Override\n");
+			w.write("\tpublic org.maxgamer.event.EventListener create(){\n");
+			w.write("\t\treturn " + (isConstructible(type) ? "new " + listener + "()" : "null") + ";\n");
+			w.write("\t}\n\n");
+			
+			w.write("\t@Override\n");
+			w.write("\tpublic org.maxgamer.event.HandlerExecutor[] getHandlers(org.maxgamer.event.EventListener listener){\n");
+			w.write("\t\treturn new org.maxgamer.event.HandlerExecutor[]{\n");
+			for(ExecutableElement m : handlers){
+				EventHandler meta = m.getAnnotation(EventHandler.class);
+				String event = getEventType(m).getQualifiedName().toString();
+				boolean batch = isBatch(m);
+				String param = batch ? "java.util.List" : event;
+				
+				w.write("\t\t\tnew org.maxgamer.event.HandlerExecutor(listener, " + event + ".class, ");
+				w.write("org.maxgamer.event.EventPriority." + meta.priority().name() + ", " + meta.async() + ", " + meta.ignoreCancelled() + ", ");
+				w.write(quote(getSignature(type, m)) + ", ");
+				if(batch){
+					w.write("new org.maxgamer.event.BatchInvoker(){\n");
+					w.write("\t\t\t\tpublic void invoke(Object target, java.util.List<? extends org.maxgamer.event.Event> events) throws Throwable{\n");
+					w.write("\t\t\t\t\t((" + listener + ") target)." + m.getSimpleName() + "((" + param + ") events);\n");
+				}
+				else{
+					w.write("new org.maxgamer.event.HandlerInvoker(){\n");
+					w.write("\t\t\t\tpublic void invoke(Object target, org.maxgamer.event.Event event) throws Throwable{\n");
+					w.write("\t\t\t\t\t((" + listener + ") target)." + m.getSimpleName() + "((" + param + ") event);\n");
+				}
+				w.write("\t\t\t\t}\n");
+				w.write("\t\t\t}),\n");
+			}
+			w.write("\t\t};\n");
+			w.write("\t}\n");
+			w.write("}\n");
+		}
+		finally{
+			w.close();
+		}
+	}
+	
+	/**
+	 * Builds a description of the given method, similar to Method.toGenericString().
+	 * @param type The listener class
+	 * @param m The method
+	 * @return The description
+	 */
+	private String getSignature(TypeElement type, ExecutableElement m){
+		TypeElement owner = (TypeElement) m.getEnclosingElement();
+		StringBuilder sb = new StringBuilder("public ");
+		sb.append(m.getReturnType()).append(' ');
+		sb.append(elements.getBinaryName(owner)).append('.').append(m.getSimpleName());
+		sb.append('(').append(m.getParameters().get(0).asType()).append(')');
+		return sb.toString();
+	}
+	
+	/**
+	 * Quotes the given string as a Java string literal.
+	 * @param s The string
+	 * @return The literal
+	 */
+	private static String quote(String s){
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+	
+	/**
+	 * Writes the index of @AutoRegister listeners. The listeners in the index
+	 * from a previous build are kept, unless they were compiled in this build,
+	 * in which case the index already says whether they are still listeners.
+	 */
+	private void writeIndex(){
+		List<String> previous = readIndex();
+		LinkedHashSet<String> names = new LinkedHashSet<String>();
+		for(String name : previous){
+			if(compiled.contains(name) == false){
+				names.add(name);
+			}
+		}
+		names.addAll(index);
+		if(names.isEmpty() && previous.isEmpty()){
+			return;
+		}
+		
+		try{
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", ListenerIndex.INDEX);
+			Writer w = file.openWriter();
+			try{
+				w.write("# Generated by " + getClass().getName() + ". Do not edit.\n");
+				for(String name : names){
+					w.write(name + "\n");
+				}
+			}
+			finally{
+				w.close();
+			}
+		}
+		catch(IOException e){
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write listener index: " + e);
+		}
+	}
+	
+	/**
+	 * Reads the listener names from the index left in the output folder by a previous build.
+	 * @return The names, or an empty list if there is no index.
+	 */
+	private List<String> readIndex(){
+		List<String> names = new ArrayList<String>();
+		try{
+			FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", ListenerIndex.INDEX);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(file.openInputStream(), "UTF-8"));
+			try{
+				String line;
+				while((line = reader.readLine()) != null){
+					line = line.trim();
+					if(line.isEmpty() || line.startsWith("#")){
+						continue;
+					}
+					names.add(line);
+				}
+			}
+			finally{
+				reader.close();
+			}
+		}
+		catch(IOException e){
+			//No previous build
+		}
+		return names;
+	}
+}
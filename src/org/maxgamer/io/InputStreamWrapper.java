@@ -202,10 +202,10 @@ public class InputStreamWrapper extends InputStream{
 	 */
 	public synchronized long readLong() throws IOException{
 		if(this.littleEndian){
-			return ((long)((readInt() & 0xFFFFFFFF)) | (long)((readInt() << 32)));
+			return (readInt() & 0xFFFFFFFFL) | ((long) readInt() << 32);
 		}
 		else{
-			return (readInt() << 32) | (readInt() & 0xFFFFFFFF);
+			return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
 		}
 	}
 	/**
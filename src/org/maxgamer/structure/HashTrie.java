@@ -0,0 +1,281 @@
+package org.maxgamer.structure;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * An immutable hash map. put() and remove() return a new map, which shares
+ * everything with the old map except the path to the changed key, so an
+ * update copies O(log n) small arrays instead of the whole map. This suits
+ * copy-on-write snapshots which hold a large number of keys, where only one
+ * key changes at a time.<br/>
+ * <br/>
+ * Keys are stored in a trie of their hash codes, five bits per level. Each
+ * node holds a bitmap of which of its 32 slots are used, and an array with
+ * a key and value (Or null and a child node) for each used slot. Keys with
+ * the same 32 bit hash end up in a node which is searched linearly.<br/>
+ * <br/>
+ * Keys and values may not be null.
+ * @author netherfoam
+ *
+ * @param <K> The type of key
+ * @param <V> The type of value
+ */
+public class HashTrie<K, V>{
+	/** Shared empty map */
+	private static final HashTrie<Object, Object> EMPTY = new HashTrie<Object, Object>(null, 0);
+	/** Shared empty node, which put() starts from */
+	private static final Node EMPTY_NODE = new Node(0, new Object[0]);
+
+	/** The root node, or null if the map is empty */
+	private final Node root;
+	/** The number of keys */
+	private final int size;
+
+	private HashTrie(Node root, int size){
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * The empty map.
+	 * @return The empty map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> HashTrie<K, V> empty(){
+		return (HashTrie<K, V>) EMPTY;
+	}
+
+	/**
+	 * The number of keys in this map.
+	 * @return The number of keys in this map.
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Returns true if this map has no keys.
+	 * @return true if this map has no keys.
+	 */
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	/**
+	 * Fetches the value for the given key.
+	 * @param key The key, compared using equals()
+	 * @return The value, or null if the key is not in this map.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(Object key){
+		if(root == null){
+			return null;
+		}
+		return (V) root.get(key, hash(key), 0);
+	}
+
+	/**
+	 * Creates a copy of this map with the given key mapped to the given value.
+	 * @param key The key
+	 * @param value The value
+	 * @return The new map
+	 */
+	public HashTrie<K, V> put(K key, V value){
+		if(key == null || value == null){
+			throw new NullPointerException("Keys and values may not be null.");
+		}
+		int added = get(key) == null ? 1 : 0;
+		return new HashTrie<K, V>((root == null ? EMPTY_NODE : root).put(key, hash(key), value, 0), size + added);
+	}
+
+	/**
+	 * Creates a copy of this map without the given key.
+	 * @param key The key, compared using equals()
+	 * @return The new map, or this map if the key is not in it.
+	 */
+	public HashTrie<K, V> remove(Object key){
+		if(root == null || get(key) == null){
+			return this;
+		}
+		Node next = root.remove(key, hash(key), 0);
+		if(next == null){
+			return empty();
+		}
+		return new HashTrie<K, V>(next, size - 1);
+	}
+
+	/**
+	 * Copies every key and value in this map into a list, in no particular order.
+	 * @return The entries, never null.
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<Map.Entry<K, V>> entries(){
+		ArrayList<Map.Entry<K, V>> list = new ArrayList<Map.Entry<K, V>>(size);
+		if(root != null){
+			root.collect((ArrayList<Map.Entry<Object, Object>>) (ArrayList<?>) list);
+		}
+		return list;
+	}
+
+	@Override
+	public String toString(){
+		return entries().toString();
+	}
+
+	/**
+	 * Spreads the high bits of the key's hash code into the low bits, which are used first.
+	 */
+	private static int hash(Object key){
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * A node in the trie. Nodes are never modified once created.
+	 */
+	private static class Node{
+		/** The slots which are used. Unused at the bottom of the trie, where every key has the same hash */
+		private final int bitmap;
+		/** A key and value for each used slot, or null and a Node for slots which hold a child node */
+		private final Object[] array;
+
+		private Node(int bitmap, Object[] array){
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		private Object get(Object key, int hash, int shift){
+			if(shift >= 32){
+				//Every key here has the same hash
+				for(int i = 0; i < array.length; i += 2){
+					if(key.equals(array[i])){
+						return array[i + 1];
+					}
+				}
+				return null;
+			}
+
+			int bit = 1 << ((hash >>> shift) & 31);
+			if((bitmap & bit) == 0){
+				return null;
+			}
+			int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object k = array[i];
+			if(k == null){
+				return ((Node) array[i + 1]).get(key, hash, shift + 5);
+			}
+			return key.equals(k) ? array[i + 1] : null;
+		}
+
+		private Node put(Object key, int hash, Object value, int shift){
+			if(shift >= 32){
+				for(int i = 0; i < array.length; i += 2){
+					if(key.equals(array[i])){
+						return new Node(bitmap, with(array, i + 1, value));
+					}
+				}
+				Object[] copy = new Object[array.length + 2];
+				System.arraycopy(array, 0, copy, 0, array.length);
+				copy[array.length] = key;
+				copy[array.length + 1] = value;
+				return new Node(bitmap, copy);
+			}
+
+			int bit = 1 << ((hash >>> shift) & 31);
+			int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+			if((bitmap & bit) == 0){
+				//A new slot
+				Object[] copy = new Object[array.length + 2];
+				System.arraycopy(array, 0, copy, 0, i);
+				copy[i] = key;
+				copy[i + 1] = value;
+				System.arraycopy(array, i, copy, i + 2, array.length - i);
+				return new Node(bitmap | bit, copy);
+			}
+
+			Object k = array[i];
+			if(k == null){
+				Node child = ((Node) array[i + 1]).put(key, hash, value, shift + 5);
+				return new Node(bitmap, with(array, i + 1, child));
+			}
+			if(key.equals(k)){
+				return new Node(bitmap, with(array, i + 1, value));
+			}
+
+			//Two keys in one slot, so the slot becomes a child node holding both.
+			Node child = EMPTY_NODE.put(k, hash(k), array[i + 1], shift + 5).put(key, hash, value, shift + 5);
+			Object[] copy = with(array, i + 1, child);
+			copy[i] = null;
+			return new Node(bitmap, copy);
+		}
+
+		/**
+		 * Removes the given key, which must be in this node or its children.
+		 * @return The new node, or null if it would be empty.
+		 */
+		private Node remove(Object key, int hash, int shift){
+			if(shift >= 32){
+				for(int i = 0; i < array.length; i += 2){
+					if(key.equals(array[i])){
+						return array.length == 2 ? null : new Node(bitmap, without(array, i));
+					}
+				}
+				return this;
+			}
+
+			int bit = 1 << ((hash >>> shift) & 31);
+			if((bitmap & bit) == 0){
+				return this;
+			}
+			int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+			Object k = array[i];
+			if(k == null){
+				Node child = ((Node) array[i + 1]).remove(key, hash, shift + 5);
+				if(child != null){
+					return new Node(bitmap, with(array, i + 1, child));
+				}
+			}
+			else if(key.equals(k) == false){
+				return this;
+			}
+
+			//The slot is now empty
+			if(bitmap == bit){
+				return null;
+			}
+			return new Node(bitmap ^ bit, without(array, i));
+		}
+
+		private void collect(ArrayList<Map.Entry<Object, Object>> list){
+			for(int i = 0; i < array.length; i += 2){
+				if(array[i] == null){
+					((Node) array[i + 1]).collect(list);
+				}
+				else{
+					list.add(new AbstractMap.SimpleImmutableEntry<Object, Object>(array[i], array[i + 1]));
+				}
+			}
+		}
+
+		/**
+		 * Copies the given array with one element replaced.
+		 */
+		private static Object[] with(Object[] array, int i, Object o){
+			Object[] copy = array.clone();
+			copy[i] = o;
+			return copy;
+		}
+
+		/**
+		 * Copies the given array without the pair starting at the given index.
+		 */
+		private static Object[] without(Object[] array, int i){
+			Object[] copy = new Object[array.length - 2];
+			System.arraycopy(array, 0, copy, 0, i);
+			System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+			return copy;
+		}
+	}
+}
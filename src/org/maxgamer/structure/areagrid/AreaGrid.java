@@ -1,17 +1,64 @@
 package org.maxgamer.structure.areagrid;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class AreaGrid<T extends MBR>{
 	final int BITS_PER_REF = 64;
 	
+	/** The epoch of the last query which stamped StampedMBRs, shared by all grids since an MBR may be in several */
+	private static final AtomicLong EPOCH = new AtomicLong();
+	
 	/** The number of bits we need to shift when converting x/y coordinates to grid coordinates - Faster than dividing*/
 	private byte bits;
 	/** The array of grids we are to use. */
-	private Grid[][] grid;
+	private final Grid[][] grid;
+	/** True if cells cache the bounds of their MBRs in primitive arrays */
+	private boolean packed;
+	/** True if cells are guarded by StampedLocks with optimistic reads, instead of synchronizing */
+	private boolean concurrent;
 	
 	public AreaGrid(int width, int height, int lengths){
+		this(width, height, lengths, false);
+	}
+	
+	/**
+	 * Constructs a new AreaGrid.
+	 * @param width The width of the area
+	 * @param height The height of the area
+	 * @param lengths The width and height of each cell, which must be a power of 2
+	 * @param packed If true, each cell keeps the bounds of its MBRs in int arrays
+	 * next to the MBRs. Queries then filter candidates by scanning those arrays,
+	 * without calling the MBR's methods, and only touch MBRs which overlap. In
+	 * exchange, each entry takes 16 more bytes, and an MBR which is in the grid
+	 * must not change unless it is removed first or move() is called afterwards.
+	 */
+	public AreaGrid(int width, int height, int lengths, boolean packed){
+		this(width, height, lengths, packed, false);
+	}
+	
+	/**
+	 * Constructs a new AreaGrid.
+	 * @param width The width of the area
+	 * @param height The height of the area
+	 * @param lengths The width and height of each cell, which must be a power of 2
+	 * @param packed If true, each cell keeps the bounds of its MBRs in int arrays
+	 * @param concurrent If true, each cell is guarded by a StampedLock instead of
+	 * synchronizing on it. Queries read each cell optimistically, without blocking
+	 * or writing to shared memory, and only wait for the lock if the cell was
+	 * modified during the read. This suits grids which are read by many threads
+	 * and modified rarely, at the cost of one lock object per cell.
+	 * @see AreaGrid#AreaGrid(int, int, int, boolean)
+	 */
+	public AreaGrid(int width, int height, int lengths, boolean packed, boolean concurrent){
+		this.packed = packed;
+		this.concurrent = concurrent;
 		if((lengths & -lengths) != lengths){ // It looks like voodoo, but will return true if lengths isn't a power of 2.
 			throw new IllegalArgumentException("Lengths should be a multiple of 2!");
 		}
@@ -50,10 +97,16 @@ public class AreaGrid<T extends MBR>{
 			m += grid[i].length * BITS_PER_REF;
 			for(int j = 0; j < grid[i].length; j++){
 				if(grid[i][j] == null) continue;
-				m += BITS_PER_REF; //Arraylist
-				m += 32; //Arraylist size field
-				m += BITS_PER_REF * 16; //Arraylist objects
-				m += grid[i][j].objects.size() * BITS_PER_REF;
+				m += BITS_PER_REF; //Array
+				m += 32; //Size field
+				m += grid[i][j].getCapacity() * BITS_PER_REF;
+				if(packed){
+					m += BITS_PER_REF * 4; //Bounds arrays
+					m += grid[i][j].getCapacity() * 32 * 4;
+				}
+				if(concurrent){
+					m += BITS_PER_REF + 64 * 2; //StampedLock
+				}
 			}
 		}
 		return m;
@@ -78,36 +131,39 @@ public class AreaGrid<T extends MBR>{
 	public HashSet<T> get(MBR query, int guess){
 		validate(query);
 		
-		int X = (query.getMin(0)) >> bits;
-		int Y = (query.getMin(1)) >> bits;
+		int minX = query.getMin(0);
+		int minY = query.getMin(1);
+		int maxX = minX + query.getDimension(0);
+		int maxY = minY + query.getDimension(1);
 		
-		//We want to reuse the bits that were dropped off from above, and add them here.
-		int dx = ((query.getMin(0) & ((1 << bits) - 1)) + (query.getDimension(0)) >> bits);
-		int dy = ((query.getMin(1) & ((1 << bits) - 1)) + (query.getDimension(1)) >> bits);
+		//Only the cells which are inside the grid. The query's max is inclusive.
+		int width = grid.length;
+		int height = width == 0 ? 0 : grid[0].length;
+		int fromX = getCell(minX, width);
+		int fromY = getCell(minY, height);
+		int toX = Math.min(width - 1, maxX >> bits);
+		int toY = Math.min(height - 1, maxY >> bits);
 		
 		HashSet<T> objects = new HashSet<T>(guess);
 		
-		//We must put it in each grid that it overlaps with.
-		for(int xOffset = 0; xOffset <= dx; xOffset++){
-			for(int yOffset = 0; yOffset <= dy; yOffset++){
-				Grid g = grid[X + xOffset][Y + yOffset];
-				if(g != null){
-					synchronized(g.objects){
-						for(MBR o : g.objects){
-							//Version 2.0
-							//We use <= query.getMin(0) because the boundaries TOUCH but do not overlap!
-							if(o.getMin(0) + o.getDimension(0) <= query.getMin(0)) continue; //o's max is lower than query's min
-							if(o.getMin(0) > query.getMin(0) + query.getDimension(0)) continue; //o's min is higher than query's max
-							
-							if(o.getMin(1) + o.getDimension(1) <= query.getMin(1)) continue; //o's max is lower than query's min
-							if(o.getMin(1) > query.getMin(1) + query.getDimension(1)) continue; //o's min is higher than query's max
-							objects.add((T) o);
+		Matches matches = Matches.acquire();
+		try{
+			//We must put it in each grid that it overlaps with.
+			for(int x = fromX; x <= toX; x++){
+				for(int y = fromY; y <= toY; y++){
+					Grid g = grid[x][y];
+					if(g != null){
+						g.read(minX, minY, maxX, maxY, matches);
+						for(int i = 0; i < matches.size; i++){
+							objects.add((T) matches.objects[i]);
 						}
 					}
 				}
 			}
 		}
-		
+		finally{
+			matches.release();
+		}
 		
 		return objects;
 	}
@@ -116,36 +172,31 @@ public class AreaGrid<T extends MBR>{
 	public <U extends T> HashSet<U> get(MBR query, int guess, Class<U> clazz){
 		validate(query);
 		
-		int X = (query.getMin(0)) >> bits;
-		int Y = (query.getMin(1)) >> bits;
+		int minX = query.getMin(0);
+		int minY = query.getMin(1);
+		int maxX = minX + query.getDimension(0);
+		int maxY = minY + query.getDimension(1);
 		
-		//We want to reuse the bits that were dropped off from above, and add them here.
-		int dx = ((query.getMin(0) & ((1 << bits) - 1)) + (query.getDimension(0)) >> bits);
-		int dy = ((query.getMin(1) & ((1 << bits) - 1)) + (query.getDimension(1)) >> bits);
+		//Only the cells which are inside the grid. The query's max is inclusive.
+		int width = grid.length;
+		int height = width == 0 ? 0 : grid[0].length;
+		int fromX = getCell(minX, width);
+		int fromY = getCell(minY, height);
+		int toX = Math.min(width - 1, maxX >> bits);
+		int toY = Math.min(height - 1, maxY >> bits);
 		
 		HashSet<U> objects = new HashSet<U>(guess);
 		
-		//We must put it in each grid that it overlaps with.
-		for(int xOffset = 0; xOffset <= dx; xOffset++){
-			for(int yOffset = 0; yOffset <= dy; yOffset++){
-				Grid g;
-				try{
-					g = grid[X + xOffset][Y + yOffset];
-				}
-				catch(IndexOutOfBoundsException e){
-					//We're < 0 or >= length. There are no MBR's here!
-					continue;
-				}
-				if(g != null){
-					synchronized(g.objects){
-						for(MBR o : g.objects){
-							//Version 2.0
-							//We use <= query.getMin(0) because the boundaries TOUCH but do not overlap!
-							if(o.getMin(0) + o.getDimension(0) <= query.getMin(0)) continue; //o's max is lower than query's min
-							if(o.getMin(0) > query.getMin(0) + query.getDimension(0)) continue; //o's min is higher than query's max
-							
-							if(o.getMin(1) + o.getDimension(1) <= query.getMin(1)) continue; //o's max is lower than query's min
-							if(o.getMin(1) > query.getMin(1) + query.getDimension(1)) continue; //o's min is higher than query's max
+		Matches matches = Matches.acquire();
+		try{
+			//We must put it in each grid that it overlaps with.
+			for(int x = fromX; x <= toX; x++){
+				for(int y = fromY; y <= toY; y++){
+					Grid g = grid[x][y];
+					if(g != null){
+						g.read(minX, minY, maxX, maxY, matches);
+						for(int i = 0; i < matches.size; i++){
+							MBR o = matches.objects[i];
 							
 							if(clazz.isInstance(o)){
 								objects.add((U) o);
@@ -155,11 +206,194 @@ public class AreaGrid<T extends MBR>{
 				}
 			}
 		}
-		
+		finally{
+			matches.release();
+		}
 		
 		return objects;
 	}
 	
+	/**
+	 * Adds all MBRs that overlap with the given MBR to the given list. The list
+	 * can be reused between queries, so this does not allocate once the list is
+	 * big enough.<br/>
+	 * <br/>
+	 * MBRs that are in several cells are only added once. In a grid which is
+	 * not concurrent, StampedMBRs are recognised by their stamp: each query
+	 * takes a new epoch and stamps each result with it, and skips MBRs which
+	 * already have it. Stamping writes to the MBR, so queries which may find
+	 * the same StampedMBRs must not run at the same time. Concurrent grids are
+	 * meant to be queried by many threads at once, so they never stamp. There,
+	 * and for other MBRs, an MBR is only added from the cell which contains the
+	 * lowest corner of its overlap with the query, as in forEachOverlapping().
+	 * @param query The MBR to check for overlaps with
+	 * @param results The list to add the overlapping MBRs to. It is not cleared first.
+	 * @return The number of MBRs added.
+	 */
+	@SuppressWarnings("unchecked")
+	public int get(MBR query, List<? super T> results){
+		validate(query);
+		long epoch = concurrent ? 0 : EPOCH.incrementAndGet();
+		
+		int minX = query.getMin(0);
+		int minY = query.getMin(1);
+		int maxX = minX + query.getDimension(0);
+		int maxY = minY + query.getDimension(1);
+		
+		int width = grid.length;
+		int height = width == 0 ? 0 : grid[0].length;
+		int fromX = getCell(minX, width);
+		int fromY = getCell(minY, height);
+		int toX = Math.min(width - 1, maxX >> bits);
+		int toY = Math.min(height - 1, maxY >> bits);
+		
+		int found = 0;
+		Matches matches = Matches.acquire();
+		try{
+			for(int x = fromX; x <= toX; x++){
+				for(int y = fromY; y <= toY; y++){
+					Grid g = grid[x][y];
+					if(g == null){
+						continue;
+					}
+					g.read(minX, minY, maxX, maxY, matches);
+					for(int i = 0; i < matches.size; i++){
+						MBR o = matches.objects[i];
+						
+						if(epoch != 0 && o instanceof StampedMBR){
+							StampedMBR s = (StampedMBR) o;
+							if(s.getQueryStamp() == epoch) continue; //Found in a previous cell
+							s.setQueryStamp(epoch);
+						}
+						else{
+							if(getCell(Math.max(matches.minX[i], minX), width) != x) continue;
+							if(getCell(Math.max(matches.minY[i], minY), height) != y) continue;
+						}
+						
+						results.add((T) o);
+						found++;
+					}
+				}
+			}
+		}
+		finally{
+			matches.release();
+		}
+		return found;
+	}
+	
+	/**
+	 * Calls the given action once for each MBR that overlaps with the given MBR.
+	 * Unlike get(), this does not allocate. An MBR which is in several cells is
+	 * only passed to the action from the cell which contains the lowest corner
+	 * of its overlap with the query, so no set is needed to remove duplicates.
+	 * The action is not called while any cell is locked, so it may query or
+	 * modify this grid. Changes to cells which have not been scanned yet may
+	 * or may not be seen.
+	 * @param query The MBR to check for overlaps with
+	 * @param action The action to call with each overlapping MBR
+	 */
+	public void forEachOverlapping(MBR query, Consumer<? super T> action){
+		scan(query, action, null, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Calls the given visitor once for each MBR that overlaps with the given
+	 * MBR, until the visitor returns false. This does not allocate. As with
+	 * forEachOverlapping(), the visitor may query or modify this grid.
+	 * @param query The MBR to check for overlaps with
+	 * @param visitor Returns true to continue to the next MBR, or false to stop.
+	 * @return true if every overlapping MBR was visited, false if the visitor stopped early.
+	 */
+	public boolean visitOverlapping(MBR query, Predicate<? super T> visitor){
+		return scan(query, null, visitor, Integer.MAX_VALUE) >= 0;
+	}
+	
+	/**
+	 * Returns true if any MBR overlaps with the given MBR. This stops at
+	 * the first overlap, and does not allocate.
+	 * @param query The MBR to check for overlaps with
+	 * @return true if any MBR overlaps with the given MBR.
+	 */
+	public boolean anyOverlapping(MBR query){
+		return scan(query, null, null, 1) > 0;
+	}
+	
+	/**
+	 * Counts the MBRs that overlap with the given MBR, without allocating.
+	 * @param query The MBR to check for overlaps with
+	 * @return The number of overlapping MBRs. Each MBR is counted once.
+	 */
+	public int countOverlapping(MBR query){
+		return scan(query, null, null, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Finds each MBR that overlaps with the given MBR, and passes it to the
+	 * action or visitor (If either is given). The query may extend past the
+	 * edges of the grid. The matches in each cell are copied out of the cell
+	 * before the action or visitor is called, so user code never runs while a
+	 * cell is locked, and an optimistic read can be repeated without calling
+	 * it twice.
+	 * @param query The MBR to check for overlaps with
+	 * @param action Called with each overlapping MBR, may be null
+	 * @param visitor Called with each overlapping MBR until it returns false, may be null
+	 * @param limit The number of overlapping MBRs to stop after
+	 * @return The number of overlapping MBRs found, or -1 if the visitor returned false.
+	 */
+	@SuppressWarnings("unchecked")
+	private int scan(MBR query, Consumer<? super T> action, Predicate<? super T> visitor, int limit){
+		validate(query);
+		
+		int minX = query.getMin(0);
+		int minY = query.getMin(1);
+		int maxX = minX + query.getDimension(0);
+		int maxY = minY + query.getDimension(1);
+		
+		//Only the cells which are inside the grid.
+		int width = grid.length;
+		int height = width == 0 ? 0 : grid[0].length;
+		int fromX = getCell(minX, width);
+		int fromY = getCell(minY, height);
+		int toX = Math.min(width - 1, maxX >> bits);
+		int toY = Math.min(height - 1, maxY >> bits);
+		
+		int found = 0;
+		Matches matches = Matches.acquire();
+		try{
+			for(int x = fromX; x <= toX; x++){
+				for(int y = fromY; y <= toY; y++){
+					Grid g = grid[x][y];
+					if(g == null){
+						continue;
+					}
+					g.read(minX, minY, maxX, maxY, matches);
+					for(int i = 0; i < matches.size; i++){
+						//o is in every cell that its overlap with the query covers, but
+						//we only want it from one of them: the one with the overlap's lowest corner.
+						if(getCell(Math.max(matches.minX[i], minX), width) != x) continue;
+						if(getCell(Math.max(matches.minY[i], minY), height) != y) continue;
+						MBR o = matches.objects[i];
+						
+						if(visitor != null && visitor.test((T) o) == false){
+							return -1;
+						}
+						if(action != null){
+							action.accept((T) o);
+						}
+						if(++found >= limit){
+							return found;
+						}
+					}
+				}
+			}
+		}
+		finally{
+			matches.release();
+		}
+		return found;
+	}
+	
 	/**
 	 * Fetches a list of MBR's which overlap with the given coordinates.
 	 * @param x The X coordinate
@@ -168,32 +402,35 @@ public class AreaGrid<T extends MBR>{
 	 */
 	@SuppressWarnings("unchecked")
 	public ArrayList<T> get(int x, int y){
-		
-		int X = (x) >> bits;
-		int Y = (y) >> bits;
+		if(grid.length == 0){
+			return new ArrayList<T>(0);
+		}
+		//MBRs which run past the far edge are kept in the last cell.
+		int X = getCell(x, grid.length);
+		int Y = getCell(y, grid[0].length);
 		
 		Grid g = grid[X][Y];
 		if(g == null){
 			return new ArrayList<T>(0);
 		}
 		ArrayList<T> objects;
-		synchronized(g.objects){
-			objects = new ArrayList<T>(g.objects.size());
-			for(MBR m : g.objects){
-				//Why do we use <= here?
-				//Because if it were < it would cause inconsistency.
-				//If it is on the very edge of a grid, it would not
-				//be added to the neighbour grid. Thus, the object's
-				//ordinate should be > x and not >= x.
-				
-				if(m.getMin(0) > x) continue; //x is too small.
-				if(m.getMin(0) + m.getDimension(0) <= x) continue; //x is too big
-				
-				if(m.getMin(1) > y) continue; //y is too small.
-				if(m.getMin(1) + m.getDimension(1) <= y) continue; //y is too big.
-				objects.add((T) m);
+		Matches matches = Matches.acquire();
+		try{
+			//Why do we use <= here?
+			//Because if it were < it would cause inconsistency.
+			//If it is on the very edge of a grid, it would not
+			//be added to the neighbour grid. Thus, the object's
+			//ordinate should be > x and not >= x.
+			//This is the same as an overlap with the 0 sized query x..x, y..y
+			g.read(x, y, x, y, matches);
+			objects = new ArrayList<T>(matches.size);
+			for(int i = 0; i < matches.size; i++){
+				objects.add((T) matches.objects[i]);
 			}
 		}
+		finally{
+			matches.release();
+		}
 		
 		return objects;
 	}
@@ -204,24 +441,17 @@ public class AreaGrid<T extends MBR>{
 	 */
 	public void put(T m){
 		validate(m);
+		checkBounds(m.getMin(0), m.getMin(1));
 		
-		int X = (m.getMin(0)) >> bits;
-		int Y = (m.getMin(1)) >> bits;
-		
-		int dx = (m.getDimension(0)) >> bits;
-		int dy = (m.getDimension(1)) >> bits;
+		int X1 = m.getMin(0) >> bits;
+		int Y1 = m.getMin(1) >> bits;
+		int X2 = getLastCell(m.getMin(0), m.getDimension(0), grid.length);
+		int Y2 = getLastCell(m.getMin(1), m.getDimension(1), grid[0].length);
 		
 		//We must put it in each grid that it overlaps with.
-		for(int xOffset = 0; xOffset <= dx; xOffset++){
-			for(int yOffset = 0; yOffset <= dy; yOffset++){
-				Grid g = grid[X + xOffset][Y + yOffset];
-				if(g == null){
-					g = new Grid(20 << bits); //Guess size for RS objects is usually 150 entities per 8x8 cube.
-					grid[X + xOffset][Y + yOffset] = g;
-				}
-				synchronized(g.objects){
-					g.objects.add(m);
-				}
+		for(int x = X1; x <= X2; x++){
+			for(int y = Y1; y <= Y2; y++){
+				getOrCreate(x, y).add(m);
 			}
 		}
 		
@@ -233,30 +463,536 @@ public class AreaGrid<T extends MBR>{
 	 */
 	public void remove(T m){
 		validate(m);
+		if(isInside(m.getMin(0), m.getMin(1)) == false){
+			return; //It can't have been put in this grid
+		}
 		
-		int X = (m.getMin(0)) >> bits;
-		int Y = (m.getMin(1)) >> bits;
-		
-		int dx = (m.getDimension(0)) >> bits;
-		int dy = (m.getDimension(1)) >> bits;
+		int X1 = m.getMin(0) >> bits;
+		int Y1 = m.getMin(1) >> bits;
+		int X2 = getLastCell(m.getMin(0), m.getDimension(0), grid.length);
+		int Y2 = getLastCell(m.getMin(1), m.getDimension(1), grid[0].length);
 		
 		//We must put it in each grid that it overlaps with.
-		for(int xOffset = 0; xOffset <= dx; xOffset++){
-			for(int yOffset = 0; yOffset <= dy; yOffset++){
-				Grid g = grid[X + xOffset][Y + yOffset];
+		for(int x = X1; x <= X2; x++){
+			for(int y = Y1; y <= Y2; y++){
+				Grid g = grid[x][y];
 				if(g == null){
 					continue;
 				}
-				synchronized(g.objects){
-					g.objects.remove(m);
+				g.remove(m);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Moves the given MBR, which has already had its position changed. The MBR
+	 * is only removed from the cells it has left and added to the cells it has
+	 * entered, so a move within the same cells does no work at all (Other than
+	 * updating the cached bounds in each cell, if the grid is packed).
+	 * The MBR's dimensions must not have changed.
+	 * @param m The MBR, at its new position
+	 * @param oldX The X coordinate of the MBR before it moved
+	 * @param oldY The Y coordinate of the MBR before it moved
+	 */
+	public void move(T m, int oldX, int oldY){
+		move(m, oldX, oldY, m.getDimension(0), m.getDimension(1));
+	}
+	
+	/**
+	 * Moves or resizes the given MBR, which has already had its position and
+	 * dimensions changed. The MBR is only removed from the cells it has left
+	 * and added to the cells it has entered.
+	 * @param m The MBR, at its new position
+	 * @param oldX The X coordinate of the MBR before it moved
+	 * @param oldY The Y coordinate of the MBR before it moved
+	 * @param oldWidth The length of the MBR on the X axis before it moved
+	 * @param oldHeight The length of the MBR on the Y axis before it moved
+	 */
+	public void move(T m, int oldX, int oldY, int oldWidth, int oldHeight){
+		//Check the new position before any cell is changed, so a bad move leaves the grid as it was.
+		validate(m);
+		checkBounds(m.getMin(0), m.getMin(1));
+		checkBounds(oldX, oldY);
+		
+		//The cells the MBR was in
+		int oldX1 = oldX >> bits;
+		int oldY1 = oldY >> bits;
+		int oldX2 = getLastCell(oldX, oldWidth, grid.length);
+		int oldY2 = getLastCell(oldY, oldHeight, grid[0].length);
+		
+		//The cells the MBR is in now
+		int newX1 = m.getMin(0) >> bits;
+		int newY1 = m.getMin(1) >> bits;
+		int newX2 = getLastCell(m.getMin(0), m.getDimension(0), grid.length);
+		int newY2 = getLastCell(m.getMin(1), m.getDimension(1), grid[0].length);
+		
+		if(oldX1 == newX1 && oldY1 == newY1 && oldX2 == newX2 && oldY2 == newY2 && packed == false){
+			return; //Still in the same cells
+		}
+		
+		//Remove it from the cells it has left
+		for(int x = oldX1; x <= oldX2; x++){
+			for(int y = oldY1; y <= oldY2; y++){
+				if(x >= newX1 && x <= newX2 && y >= newY1 && y <= newY2){
+					if(packed){
+						//Still in this cell, but the cached bounds have changed.
+						grid[x][y].update(m);
+					}
+					continue;
+				}
+				Grid g = grid[x][y];
+				if(g == null){
+					continue;
 				}
+				g.remove(m);
 			}
 		}
 		
+		//Add it to the cells it has entered
+		for(int x = newX1; x <= newX2; x++){
+			for(int y = newY1; y <= newY2; y++){
+				if(x >= oldX1 && x <= oldX2 && y >= oldY1 && y <= oldY2){
+					continue;
+				}
+				getOrCreate(x, y).add(m);
+			}
+		}
 	}
 	
+	/**
+	 * Finds the last cell on one axis that an MBR is in. The max edge of an MBR is
+	 * exclusive (An MBR whose max equals a query's min does not overlap it), so an
+	 * MBR which ends on a cell boundary is not in the next cell. This matters at the
+	 * edge of the grid, where the next cell does not exist. Cells past the edge of
+	 * the grid are clamped to the last one.
+	 * @param min The min of the MBR on the axis
+	 * @param dimension The length of the MBR on the axis
+	 * @param cells The number of cells on the axis
+	 * @return The index of the last cell, which is never before the first cell.
+	 */
+	private int getLastCell(int min, int dimension, int cells){
+		int last = (min + dimension - 1) >> bits;
+		return Math.max(min >> bits, Math.min(cells - 1, last));
+	}
+	
+	/**
+	 * The cell which holds the given coordinate, clamped to the grid. MBRs
+	 * which run past the far edge are kept in the last cell, so a query which
+	 * starts past the edge still has to look there.
+	 * @param coordinate The coordinate on the axis
+	 * @param cells The number of cells on the axis
+	 * @return The index of the cell, from 0 to cells - 1 (Or 0 if there are no cells).
+	 */
+	private int getCell(int coordinate, int cells){
+		return Math.max(0, Math.min(cells - 1, coordinate >> bits));
+	}
+	
+	/**
+	 * Returns true if the given point is inside the grid.
+	 * @param x The X coordinate
+	 * @param y The Y coordinate
+	 * @return true if the point is inside the grid.
+	 */
+	private boolean isInside(int x, int y){
+		return x >= 0 && y >= 0 && (x >> bits) < grid.length && (y >> bits) < grid[0].length;
+	}
+	
+	/**
+	 * Throws an IllegalArgumentException if the min corner of an MBR is not inside the grid.
+	 * @param x The min X of the MBR
+	 * @param y The min Y of the MBR
+	 */
+	private void checkBounds(int x, int y){
+		if(isInside(x, y) == false){
+			throw new IllegalArgumentException("MBR's min corner (" + x + ", " + y + ") is outside of the AreaGrid.");
+		}
+	}
+	
+	/**
+	 * Fetches the cell at the given grid coordinates, creating it if it does not exist.
+	 * The cell is created while holding the lock on its column, so that two threads
+	 * can't both create it and lose each other's MBRs. Queries read the cells without
+	 * this lock, which is safe because a new cell only has final fields set.
+	 * @param x The X coordinate of the cell
+	 * @param y The Y coordinate of the cell
+	 * @return The cell
+	 */
+	private Grid getOrCreate(int x, int y){
+		Grid g = grid[x][y];
+		if(g == null){
+			Grid[] column = grid[x];
+			synchronized(column){
+				g = column[y];
+				if(g == null){
+					g = new Grid(20 << bits, packed, concurrent); //Guess size for RS objects is usually 150 entities per 8x8 cube.
+					column[y] = g;
+				}
+			}
+		}
+		return g;
+	}
+	
+	/**
+	 * The MBRs in one cell which overlapped a query, copied out of the cell so that
+	 * they can be used without holding its lock. Each thread reuses one instance.
+	 */
+	private static class Matches{
+		/** The Matches for each thread, reused by each query on that thread */
+		private static final ThreadLocal<Matches> CACHE = new ThreadLocal<Matches>(){
+			@Override
+			protected Matches initialValue(){
+				return new Matches();
+			}
+		};
+		
+		/** The matching MBRs. Only the first size are used. */
+		private MBR[] objects = new MBR[32];
+		/** The minimum X and Y of each matching MBR, as the cell saw them */
+		private int[] minX = new int[32], minY = new int[32];
+		/** The number of matches */
+		private int size;
+		/** The highest size since the last release, so that stale references can be cleared */
+		private int used;
+		/** True if a query on this thread is using this instance */
+		private boolean busy;
+		
+		/**
+		 * Fetches this thread's Matches. If it is already in use (Eg. a visitor made
+		 * another query), a new instance is returned instead.
+		 * @return The Matches, which must be released after use.
+		 */
+		static Matches acquire(){
+			Matches m = CACHE.get();
+			if(m.busy){
+				return new Matches();
+			}
+			m.busy = true;
+			return m;
+		}
+		
+		/**
+		 * Makes room for at least the given number of matches, so that a cell can be
+		 * copied into the arrays without checking their length for each match.
+		 * @param capacity The number of matches
+		 */
+		void ensureCapacity(int capacity){
+			if(capacity > objects.length){
+				int length = Math.max(capacity, objects.length * 2);
+				objects = Arrays.copyOf(objects, length);
+				minX = Arrays.copyOf(minX, length);
+				minY = Arrays.copyOf(minY, length);
+			}
+		}
+		
+		/**
+		 * Discards the matches, before the next cell is read.
+		 */
+		void reset(){
+			used = Math.max(used, size);
+			size = 0;
+		}
+		
+		/**
+		 * Releases this instance after the query, so that it does not keep MBRs reachable.
+		 */
+		void release(){
+			Arrays.fill(objects, 0, Math.max(used, size), null);
+			size = 0;
+			used = 0;
+			busy = false;
+		}
+	}
+	
+	/**
+	 * A single cell of the grid. The MBRs are kept in an array, and in a packed
+	 * grid the bounds of each MBR are kept in parallel int arrays, so that the
+	 * overlap test reads sequential primitives instead of calling each MBR.<br/>
+	 * <br/>
+	 * A cell either synchronizes on itself, or in a concurrent grid, uses a
+	 * StampedLock. Reads then try an optimistic read first, which does not block
+	 * or write to shared memory, and only take the read lock if a write happened
+	 * at the same time. The arrays are created by the first add(), so that a cell
+	 * which another thread has not seen safely published is just empty.
+	 */
 	public static class Grid{
-		private ArrayList<MBR> objects;
-		public Grid(int guessSize){ objects = new ArrayList<MBR>(guessSize); }
+		/** The number of MBRs to allocate room for */
+		private final int guessSize;
+		/** True if the bounds of each MBR are kept in int arrays */
+		private final boolean packed;
+		/** Guards this cell in a concurrent grid, or null to synchronize on the cell */
+		private final StampedLock lock;
+		
+		/** The MBRs in this cell, or null if none have been added. Only the first size are used. */
+		private MBR[] objects;
+		/** The number of MBRs in this cell */
+		private int size;
+		/** The bounds of each MBR, or null if the grid is not packed. */
+		private int[] minX, minY, maxX, maxY;
+		
+		public Grid(int guessSize){ 
+			this(guessSize, false);
+		}
+		
+		public Grid(int guessSize, boolean packed){
+			this(guessSize, packed, false);
+		}
+		
+		public Grid(int guessSize, boolean packed, boolean concurrent){
+			this.guessSize = Math.max(1, guessSize);
+			this.packed = packed;
+			this.lock = concurrent ? new StampedLock() : null;
+		}
+		
+		/**
+		 * The number of MBRs this cell has room for, without growing.
+		 */
+		int getCapacity(){
+			MBR[] objects = this.objects;
+			return objects == null ? 0 : objects.length;
+		}
+		
+		/**
+		 * Copies the MBRs which overlap the given area into the given matches.
+		 * The boundaries may touch on the min side, but not overlap: an MBR whose
+		 * max equals the area's min is not counted, but one whose min equals the
+		 * area's max is.
+		 * @param out The matches, which are reset first
+		 */
+		void read(int qMinX, int qMinY, int qMaxX, int qMaxY, Matches out){
+			if(lock == null){
+				synchronized(this){
+					collect(qMinX, qMinY, qMaxX, qMaxY, out);
+				}
+				return;
+			}
+			
+			long stamp = lock.tryOptimisticRead();
+			if(stamp != 0){
+				try{
+					collect(qMinX, qMinY, qMaxX, qMaxY, out);
+				}
+				catch(RuntimeException e){
+					//The arrays may have changed under us, in which case validate() fails
+					if(lock.validate(stamp)){
+						throw e;
+					}
+				}
+				if(lock.validate(stamp)){
+					return;
+				}
+			}
+			
+			//A write happened during the optimistic read, so do it again with the lock.
+			stamp = lock.readLock();
+			try{
+				collect(qMinX, qMinY, qMaxX, qMaxY, out);
+			}
+			finally{
+				lock.unlockRead(stamp);
+			}
+		}
+		
+		/**
+		 * The body of read(). Each field is read once into a local, so that an
+		 * optimistic read sees one version of each array, even if it is torn.
+		 */
+		private void collect(int qMinX, int qMinY, int qMaxX, int qMaxY, Matches out){
+			out.reset();
+			int n = size;
+			MBR[] objects = this.objects;
+			if(n == 0 || objects == null){
+				return;
+			}
+			n = Math.min(n, objects.length);
+			out.ensureCapacity(n);
+			
+			if(packed){
+				collectPacked(objects, n, qMinX, qMinY, qMaxX, qMaxY, out);
+			}
+			else{
+				collectUnpacked(objects, n, qMinX, qMinY, qMaxX, qMaxY, out);
+			}
+		}
+		
+		/**
+		 * Tests the cached bounds of the first n MBRs, and copies out those which overlap.
+		 */
+		private void collectPacked(MBR[] objects, int n, int qMinX, int qMinY, int qMaxX, int qMaxY, Matches out){
+			int[] minX = this.minX, minY = this.minY, maxX = this.maxX, maxY = this.maxY;
+			n = Math.min(n, Math.min(Math.min(minX.length, minY.length), Math.min(maxX.length, maxY.length)));
+			MBR[] found = out.objects;
+			int[] foundX = out.minX, foundY = out.minY;
+			int k = 0;
+			for(int i = 0; i < n; i++){
+				//No short circuits, so that there is only one branch.
+				if((maxX[i] > qMinX) & (minX[i] <= qMaxX) & (maxY[i] > qMinY) & (minY[i] <= qMaxY)){
+					found[k] = objects[i];
+					foundX[k] = minX[i];
+					foundY[k] = minY[i];
+					k++;
+				}
+			}
+			out.size = k;
+		}
+		
+		/**
+		 * Tests the bounds of the first n MBRs, and copies out those which overlap.
+		 */
+		private void collectUnpacked(MBR[] objects, int n, int qMinX, int qMinY, int qMaxX, int qMaxY, Matches out){
+			MBR[] found = out.objects;
+			int[] foundX = out.minX, foundY = out.minY;
+			int k = 0;
+			for(int i = 0; i < n; i++){
+				MBR o = objects[i];
+				int x = o.getMin(0);
+				int y = o.getMin(1);
+				if(x + o.getDimension(0) <= qMinX) continue; //o's max is lower than query's min
+				if(x > qMaxX) continue; //o's min is higher than query's max
+				
+				if(y + o.getDimension(1) <= qMinY) continue; //o's max is lower than query's min
+				if(y > qMaxY) continue; //o's min is higher than query's max
+				found[k] = o;
+				foundX[k] = x;
+				foundY[k] = y;
+				k++;
+			}
+			out.size = k;
+		}
+		
+		/**
+		 * Adds the given MBR to this cell.
+		 */
+		void add(MBR m){
+			if(lock == null){
+				synchronized(this){
+					append(m);
+				}
+				return;
+			}
+			long stamp = lock.writeLock();
+			try{
+				append(m);
+			}
+			finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		/**
+		 * Removes the given MBR from this cell. MBRs are compared with equals(),
+		 * and the last MBR is moved into its place.
+		 */
+		void remove(MBR m){
+			if(lock == null){
+				synchronized(this){
+					delete(m);
+				}
+				return;
+			}
+			long stamp = lock.writeLock();
+			try{
+				delete(m);
+			}
+			finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		/**
+		 * Refreshes the cached bounds of the given MBR, if the grid is packed.
+		 */
+		void update(MBR m){
+			if(packed == false){
+				return;
+			}
+			if(lock == null){
+				synchronized(this){
+					refresh(m);
+				}
+				return;
+			}
+			long stamp = lock.writeLock();
+			try{
+				refresh(m);
+			}
+			finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		private void append(MBR m){
+			if(objects == null){
+				objects = new MBR[guessSize];
+				if(packed){
+					minX = new int[guessSize];
+					minY = new int[guessSize];
+					maxX = new int[guessSize];
+					maxY = new int[guessSize];
+				}
+			}
+			else if(size == objects.length){
+				int length = objects.length * 2;
+				objects = Arrays.copyOf(objects, length);
+				if(packed){
+					minX = Arrays.copyOf(minX, length);
+					minY = Arrays.copyOf(minY, length);
+					maxX = Arrays.copyOf(maxX, length);
+					maxY = Arrays.copyOf(maxY, length);
+				}
+			}
+			objects[size] = m;
+			setBounds(size, m);
+			size++;
+		}
+		
+		private void delete(MBR m){
+			int i = indexOf(m);
+			if(i < 0){
+				return;
+			}
+			
+			size--;
+			objects[i] = objects[size];
+			objects[size] = null;
+			if(packed){
+				minX[i] = minX[size];
+				minY[i] = minY[size];
+				maxX[i] = maxX[size];
+				maxY[i] = maxY[size];
+			}
+		}
+		
+		private void refresh(MBR m){
+			int i = indexOf(m);
+			if(i >= 0){
+				setBounds(i, m);
+			}
+		}
+		
+		/**
+		 * Finds the index of the given MBR, compared with equals().
+		 * @return The index, or -1 if it is not in this cell
+		 */
+		private int indexOf(MBR m){
+			for(int i = 0; i < size; i++){
+				if(m.equals(objects[i])){
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+		/**
+		 * Caches the bounds of the given MBR at the given index, if the grid is packed.
+		 */
+		private void setBounds(int i, MBR m){
+			if(packed){
+				minX[i] = m.getMin(0);
+				minY[i] = m.getMin(1);
+				maxX[i] = m.getMin(0) + m.getDimension(0);
+				maxY[i] = m.getMin(1) + m.getDimension(1);
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,31 @@
+package org.maxgamer.structure.areagrid;
+
+/**
+ * An MBR which has space for a query stamp. AreaGrid queries stamp each
+ * result with the query's epoch, so an MBR which is in several cells is
+ * recognised by its stamp the second time it is found, instead of by
+ * hashing it into a set.
+ * 
+ * Implementations only need to store the value, eg:<pre>
+ * private long stamp;
+ * public long getQueryStamp(){ return stamp; }
+ * public void setQueryStamp(long stamp){ this.stamp = stamp; }
+ * </pre>
+ * The stamp belongs to the AreaGrid, and should not be used for anything else.
+ * Concurrent AreaGrids don't use it, since queries on several threads would
+ * overwrite each other's stamps.
+ * @author netherfoam
+ */
+public interface StampedMBR extends MBR {
+	/**
+	 * Fetches the epoch of the last query which found this MBR.
+	 * @return the stamp, 0 if never set
+	 */
+	public long getQueryStamp();
+	
+	/**
+	 * Sets the epoch of the query which found this MBR.
+	 * @param stamp the stamp
+	 */
+	public void setQueryStamp(long stamp);
+}